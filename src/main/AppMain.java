@@ -72,6 +72,8 @@ public class AppMain {
                 System.out.println(throwable);
             }
         }
+        server.shutdown();
+        executor.shutdown();
         
 
 	}
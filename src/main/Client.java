@@ -1,13 +1,20 @@
 package main;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
 import java.util.Base64;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.crypto.tink.BinaryKeysetWriter;
+import com.google.crypto.tink.CleartextKeysetHandle;
+import com.google.crypto.tink.HybridEncrypt;
 import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.Mac;
 import com.google.crypto.tink.PublicKeySign;
-import com.google.crypto.tink.signature.PublicKeySignWrapper;
+import com.google.crypto.tink.mac.HmacKeyManager;
 import com.google.crypto.tink.signature.SignatureKeyTemplates;
 
 import main.Message.MessageType;
@@ -27,20 +34,46 @@ public class Client implements Runnable {
 	// maximum timeout of client used in "run" Method
 	private static int sendFrequency = 5000;
 
+	// if set, clients open a session with their first signed message and
+	// authenticate all following orders with a MAC of the session key
+	static boolean sessionMode = false;
+
+	// number of orders the client requests per GetOrders page
+	static int ordersPageSize = 50;
+
+	// sequence number of the newest order received from the server, only newer
+	// orders are requested
+	private long lastSequence;
+
 	int clientID;
 	KeysetHandle key;
 	Server server;
 
+	// signing primitive of the client key, built once and reused for every message
+	private final PublicKeySign signer;
+
+	// encrypts session keys for the server, built from the session public key
+	// the server handed out at registration
+	private final HybridEncrypt sessionKeyEncrypt;
+
+	// MAC primitive of the current session, null as long as no session is open
+	private Mac sessionMac;
+
 	/**
 	 * Constructor of client
 	 * 
 	 * @param clientID
 	 * @param key
+	 * @param signer
+	 * @param sessionKeyEncrypt
 	 * @param server
 	 */
-	private Client(int clientID, KeysetHandle key, Server server) {
+	private Client(int clientID, KeysetHandle key, PublicKeySign signer, HybridEncrypt sessionKeyEncrypt,
+			Server server) {
 		this.clientID = clientID;
 		this.key = key;
+		this.signer = signer;
+		this.sessionKeyEncrypt = sessionKeyEncrypt;
 		this.server = server;
 	}
 
@@ -54,19 +87,19 @@ public class Client implements Runnable {
 	}
 
 	/**
-	 * Methods that signs the client order with the corresponding key
+	 * Methods that signs the client order with the cached signer of the client
 	 * 
 	 * @param order
-	 * @param keySet
-	 * @return String : signature
-	 * @throws CoseException
+	 * @return byte[] : signature, empty if signing failed
 	 */
-	private static byte[] signMessage(String order, KeysetHandle keySet) {
-
-		// TODO: Perform signing of the parameter "order" with the given "keySet"
-		// Catch possible occurring exceptions
+	private byte[] signMessage(String order) {
 
-		return new byte[0];
+		try {
+			return signer.sign(order.getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+			return new byte[0];
+		}
 
 	}
 
@@ -86,10 +119,14 @@ public class Client implements Runnable {
 	public static Client generateNewClient(Server server) throws NoSuchAlgorithmException, IllegalStateException {
 
 		KeysetHandle privateKeysetHandle = null;
-		int clientID = 0;
+		PublicKeySign signer = null;
+		HybridEncrypt sessionKeyEncrypt = null;
+		int clientID = -1;
 		try {
 			privateKeysetHandle = KeysetHandle.generateNew(SignatureKeyTemplates.ED25519);
+			signer = privateKeysetHandle.getPrimitive(PublicKeySign.class);
 			clientID = server.registerClient(privateKeysetHandle.getPublicKeysetHandle());
+			sessionKeyEncrypt = server.getSessionPublicKey().getPrimitive(HybridEncrypt.class);
 
 		} catch (GeneralSecurityException e) {
 			e.printStackTrace();
@@ -99,7 +136,7 @@ public class Client implements Runnable {
 			throw new IllegalStateException("server does not seem to accept the client registration!");
 		}
 
-		Client c = new Client(clientID, privateKeysetHandle, server);
+		Client c = new Client(clientID, privateKeysetHandle, signer, sessionKeyEncrypt, server);
 		return c;
 
 	}
@@ -130,23 +167,145 @@ public class Client implements Runnable {
 
 	/**
 	 * Sending of signed message for buying/selling stock to server. Server sends a
-	 * response. Message is accepted if signature can be validated.
+	 * response. Message is accepted if signature can be validated. Within an open
+	 * session the message is authenticated with a MAC instead.
 	 * 
 	 * @param message
+	 * @return String : result from server
 	 * @throws JsonProcessingException
 	 */
-	private void sendMessage(String message) throws JsonProcessingException {
+	private String sendMessage(String message) throws JsonProcessingException {
+
+		if (sessionMac == null) {
+			return sendSignedMessage(message);
+		}
+		p("creating mac for message: " + message);
+		return submit(SignedMessage.createMacMessage(this.clientID, message, computeMac(message)));
+
+	}
+
+	/**
+	 * Sending of signed message to server, also within an open session, e.g. for
+	 * the session handshake
+	 * 
+	 * @param message
+	 * @return String : result from server
+	 * @throws JsonProcessingException
+	 */
+	private String sendSignedMessage(String message) throws JsonProcessingException {
 
 		p("creating signature for message: " + message);
-		byte[] signature = signMessage(message, this.key);
+		byte[] signature = signMessage(message);
 		p("signature is (base64 encoded): "
 				+ (signature.length > 0 ? Base64.getEncoder().encodeToString(signature) : "null"));
+		return submit(SignedMessage.createSignedMessage(this.clientID, message, signature));
+
+	}
 
-		String signedMessage = SignedMessage.createSignedMessage(this.clientID, message, signature);
+	private String submit(String signedMessage) {
 
 		p("sending to server: " + signedMessage);
-		String result = server.acceptMessage(signedMessage);
+		String result = server.submitMessage(signedMessage).join();
 		p("result from server: " + result);
+		return result;
+
+	}
+
+	/**
+	 * Requests the orders that are new since the last request, page by page.
+	 * Every page ends with a cursor as long as more orders follow.
+	 * 
+	 * @throws JsonProcessingException
+	 */
+	private void requestOrders() throws JsonProcessingException {
+
+		boolean more;
+		do {
+			String result = sendMessage(Message.createGetNewOrdersMessage(lastSequence, ordersPageSize));
+			more = readPage(result);
+		} while (more);
+
+	}
+
+	/**
+	 * Remembers the sequence number of the newest order of a page
+	 * 
+	 * @param page
+	 * @return boolean : true if more orders follow
+	 */
+	private boolean readPage(String page) {
+
+		boolean more = false;
+		for (String line : page.split("\n")) {
+			try {
+				Message message = Json.MESSAGE_READER.readValue(line);
+				if (message.getMessageType() == MessageType.ServerSendOrders) {
+					lastSequence = Math.max(lastSequence,
+							Long.parseLong(message.getMessageParameters().get("sequence")));
+				} else if (message.getMessageType() == MessageType.ServerSendOrdersCursor) {
+					more = true;
+				}
+			} catch (IOException | NumberFormatException e) {
+				// e.g. "no orders in queue"
+				return false;
+			}
+		}
+		return more;
+
+	}
+
+	/**
+	 * Opens a session at the server. The client asks for a fresh challenge, then
+	 * generates a new MAC key and sends it in a signed message together with
+	 * the challenge. The key is encrypted with the session public key of the
+	 * server and bound to client and challenge, so only the server can read it
+	 * and the handshake cannot be replayed. Once the server accepted the key,
+	 * all following messages are authenticated with it.
+	 * 
+	 * @throws JsonProcessingException
+	 */
+	private void openSession() throws JsonProcessingException {
+
+		try {
+			Message challengeResponse = Json.MESSAGE_READER
+					.readValue(sendSignedMessage(Message.createGetSessionChallengeMessage()));
+			String challenge = challengeResponse.getMessageParameters().get("challenge");
+			if (challenge == null) {
+				return;
+			}
+
+			KeysetHandle sessionKey = KeysetHandle.generateNew(HmacKeyManager.hmacSha256HalfDigestTemplate());
+			ByteArrayOutputStream serializedKey = new ByteArrayOutputStream();
+			CleartextKeysetHandle.write(sessionKey, BinaryKeysetWriter.withOutputStream(serializedKey));
+			byte[] encryptedKey = sessionKeyEncrypt.encrypt(serializedKey.toByteArray(),
+					Server.sessionContext(clientID, challenge));
+
+			String result = sendSignedMessage(
+					Message.createOpenSessionMessage(Base64.getEncoder().encodeToString(encryptedKey), challenge));
+			Message response = Json.MESSAGE_READER.readValue(result);
+			if ("true".equals(response.getMessageParameters().get("result"))) {
+				sessionMac = sessionKey.getPrimitive(Mac.class);
+			}
+		} catch (GeneralSecurityException | IOException e) {
+			e.printStackTrace();
+		}
+
+	}
+
+	/**
+	 * Methods that computes the MAC of an order with the session key
+	 * 
+	 * @param order
+	 * @return byte[] : mac, empty if computation failed
+	 */
+	private byte[] computeMac(String order) {
+
+		try {
+			return sessionMac.computeMac(order.getBytes(StandardCharsets.UTF_8));
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+			return new byte[0];
+		}
 
 	}
 
@@ -205,9 +364,12 @@ public class Client implements Runnable {
 		// while (true) {
 		try {
 			Thread.sleep((long) (Math.random() * sendFrequency + 1));
+			if (sessionMode) {
+				openSession();
+			}
 			sendMessage(generateRandomMessage(MessageType.BuyStock));
 			sendMessage(generateRandomMessage(MessageType.SellStock));
-			sendMessage(generateRandomMessage(MessageType.GetOrders));
+			requestOrders();
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		} catch (NumberFormatException e) {
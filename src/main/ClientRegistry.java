@@ -0,0 +1,441 @@
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ObjIntConsumer;
+
+import com.google.crypto.tink.BinaryKeysetWriter;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.PublicKeyVerify;
+import com.google.crypto.tink.proto.Ed25519PublicKey;
+import com.google.crypto.tink.proto.KeyStatusType;
+import com.google.crypto.tink.proto.Keyset;
+import com.google.crypto.tink.proto.OutputPrefixType;
+import com.google.crypto.tink.subtle.Ed25519Verify;
+
+/**
+ * Registry of all clients that are known to the server.
+ *
+ * Clients are identified by the fingerprint (SHA-256) of their serialized
+ * public keyset, so registering the same public key twice returns the same
+ * client ID. IDs are allocated without a global lock and clients are looked up
+ * by ID in constant time.
+ *
+ * To keep millions of mostly idle clients cheap, no key objects are kept.
+ * The raw Ed25519 public key, Tink key ID and fingerprint of every client are
+ * stored in flat arrays indexed by client ID (about 72 bytes per client). A
+ * verifier is only built when a client actually sends a message.
+ *
+ * New registrations can be written to a log, and a registry can be rebuilt
+ * with the same client IDs from the logged keys.
+ */
+class ClientRegistry {
+
+	static final int KEY_LENGTH = Ed25519Verify.PUBLIC_KEY_LEN;
+	static final int FINGERPRINT_LENGTH = 32;
+	// size of a serialized public key: raw key, key ID, output prefix type and
+	// fingerprint
+	static final int RECORD_LENGTH = KEY_LENGTH + Integer.BYTES + Integer.BYTES + FINGERPRINT_LENGTH;
+
+	private static final String ED25519_PUBLIC_KEY_TYPE = "type.googleapis.com/google.crypto.tink.Ed25519PublicKey";
+
+	// client IDs are split in chunks of 2^16 clients, allocated on demand
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int MAX_CHUNKS = 1 << (31 - CHUNK_BITS);
+
+	// number of independently locked parts of the fingerprint index
+	private static final int SEGMENT_BITS = 6;
+
+	/**
+	 * Flat storage of the keys of 2^16 consecutive client IDs
+	 */
+	private static final class Chunk {
+		final byte[] keys = new byte[CHUNK_SIZE * KEY_LENGTH];
+		final byte[] fingerprints = new byte[CHUNK_SIZE * FINGERPRINT_LENGTH];
+		final int[] keyIds = new int[CHUNK_SIZE];
+		// output prefix type + 1 of a registered client, 0 for free IDs. It is
+		// written last, so a reader that sees it also sees the key
+		final AtomicIntegerArray states = new AtomicIntegerArray(CHUNK_SIZE);
+	}
+
+	/**
+	 * Public key of a client as it is stored in the registry
+	 */
+	static final class PublicKey {
+		final byte[] key;
+		final int keyId;
+		final OutputPrefixType outputPrefixType;
+		final byte[] fingerprint;
+
+		PublicKey(byte[] key, int keyId, OutputPrefixType outputPrefixType, byte[] fingerprint) {
+			this.key = key;
+			this.keyId = keyId;
+			this.outputPrefixType = outputPrefixType;
+			this.fingerprint = fingerprint;
+		}
+
+		/**
+		 * Serializes the key for a log or snapshot
+		 *
+		 * @return byte[] : RECORD_LENGTH bytes
+		 */
+		byte[] toBytes() {
+			return ByteBuffer.allocate(RECORD_LENGTH).put(key).putInt(keyId).putInt(outputPrefixType.getNumber())
+					.put(fingerprint).array();
+		}
+
+		/**
+		 * Reads a key serialized with {@link #toBytes()}
+		 *
+		 * @param bytes
+		 * @return PublicKey
+		 * @throws IOException if bytes are no serialized key
+		 */
+		static PublicKey fromBytes(byte[] bytes) throws IOException {
+			if (bytes.length != RECORD_LENGTH) {
+				throw new IOException("invalid public key record");
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			byte[] key = new byte[KEY_LENGTH];
+			buffer.get(key);
+			int keyId = buffer.getInt();
+			OutputPrefixType outputPrefixType = OutputPrefixType.forNumber(buffer.getInt());
+			byte[] fingerprint = new byte[FINGERPRINT_LENGTH];
+			buffer.get(fingerprint);
+			if (outputPrefixType == null) {
+				throw new IOException("invalid output prefix type");
+			}
+			return new PublicKey(key, keyId, outputPrefixType, fingerprint);
+		}
+	}
+
+	/**
+	 * Persists new registrations, e.g. in the journal. Called before the client
+	 * becomes visible.
+	 */
+	interface RegistrationLog {
+		void registered(int clientId, PublicKey publicKey) throws IOException;
+	}
+
+	/**
+	 * Part of the fingerprint index. Open addressing table of client IDs + 1,
+	 * the fingerprints themselves are compared in the flat arrays.
+	 */
+	private final class Segment {
+		private int[] slots = new int[16];
+		private int size;
+
+		synchronized int find(byte[] fingerprint, int hash) {
+			int mask = slots.length - 1;
+			for (int i = hash & mask;; i = (i + 1) & mask) {
+				int slot = slots[i];
+				if (slot == 0) {
+					return -1;
+				}
+				if (hasFingerprint(slot - 1, fingerprint)) {
+					return slot - 1;
+				}
+			}
+		}
+
+		synchronized int findOrAdd(PublicKey publicKey, int hash, RegistrationLog log) throws IOException {
+			int id = find(publicKey.fingerprint, hash);
+			if (id != -1) {
+				return id;
+			}
+			id = nextId.getAndIncrement();
+			// an ID whose registration cannot be logged stays unused
+			log.registered(id, publicKey);
+			add(id, publicKey, hash);
+			return id;
+		}
+
+		synchronized void restore(int id, PublicKey publicKey, int hash) {
+			if (find(publicKey.fingerprint, hash) != -1) {
+				return;
+			}
+			nextId.accumulateAndGet(id + 1, Math::max);
+			add(id, publicKey, hash);
+		}
+
+		void forEach(ObjIntConsumer<PublicKey> consumer) {
+			int[] registered;
+			synchronized (this) {
+				registered = slots.clone();
+			}
+			for (int slot : registered) {
+				if (slot != 0) {
+					consumer.accept(getPublicKey(slot - 1), slot - 1);
+				}
+			}
+		}
+
+		private void add(int id, PublicKey publicKey, int hash) {
+			store(id, publicKey);
+			if (++size * 2 > slots.length) {
+				resize();
+			}
+			insert(slots, id + 1, hash);
+		}
+
+		private void resize() {
+			int[] larger = new int[slots.length * 2];
+			for (int slot : slots) {
+				if (slot != 0) {
+					insert(larger, slot, hash(fingerprintOf(slot - 1)));
+				}
+			}
+			slots = larger;
+		}
+
+		private void insert(int[] table, int slot, int hash) {
+			int mask = table.length - 1;
+			int i = hash & mask;
+			while (table[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			table[i] = slot;
+		}
+	}
+
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final AtomicReferenceArray<Chunk> chunks = new AtomicReferenceArray<Chunk>(MAX_CHUNKS);
+	private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+	ClientRegistry() {
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	/**
+	 * Registers a client with its public key. A key that is already registered
+	 * keeps its client ID.
+	 *
+	 * @param publicKey: public keyset of client
+	 * @return int : client ID
+	 * @throws GeneralSecurityException if key is no single Ed25519 public key
+	 * @throws IOException              if key cannot be serialized
+	 */
+	int register(KeysetHandle publicKey) throws GeneralSecurityException, IOException {
+		return register(publicKey, (clientId, key) -> {
+		});
+	}
+
+	/**
+	 * Registers a client with its public key and logs a new registration
+	 *
+	 * @param publicKey: public keyset of client
+	 * @param log:       persists the registration before it becomes visible
+	 * @return int : client ID
+	 * @throws GeneralSecurityException if key is no single Ed25519 public key
+	 * @throws IOException              if key cannot be serialized or logged
+	 */
+	int register(KeysetHandle publicKey, RegistrationLog log) throws GeneralSecurityException, IOException {
+		PublicKey key = parse(publicKey);
+		int hash = hash(key.fingerprint);
+		return segmentOf(hash).findOrAdd(key, hash, log);
+	}
+
+	/**
+	 * Adds a client with the ID it had when it was logged, e.g. from a
+	 * snapshot or the journal. A key that is already registered is ignored.
+	 *
+	 * @param clientId
+	 * @param publicKey
+	 */
+	void restore(int clientId, PublicKey publicKey) {
+		int hash = hash(publicKey.fingerprint);
+		segmentOf(hash).restore(clientId, publicKey, hash);
+	}
+
+	/**
+	 * Passes all registered clients to a consumer. Every part of the index is
+	 * copied under its lock, so a registration that was logged before is always
+	 * seen.
+	 *
+	 * @param consumer: receives public key and client ID
+	 */
+	void forEach(ObjIntConsumer<PublicKey> consumer) {
+		for (Segment segment : segments) {
+			segment.forEach(consumer);
+		}
+	}
+
+	/**
+	 * Looks up the public key of a registered client
+	 *
+	 * @param clientId
+	 * @return PublicKey : null if client is not registered
+	 */
+	PublicKey getPublicKey(int clientId) {
+		Chunk chunk = clientId < 0 ? null : chunks.get(clientId >>> CHUNK_BITS);
+		if (chunk == null) {
+			return null;
+		}
+		int index = clientId & CHUNK_MASK;
+		int state = chunk.states.get(index);
+		if (state == 0) {
+			return null;
+		}
+		return new PublicKey(
+				Arrays.copyOfRange(chunk.keys, index * KEY_LENGTH, (index + 1) * KEY_LENGTH),
+				chunk.keyIds[index], OutputPrefixType.forNumber(state - 1),
+				Arrays.copyOfRange(chunk.fingerprints, index * FINGERPRINT_LENGTH, (index + 1) * FINGERPRINT_LENGTH));
+	}
+
+	/**
+	 * Builds the verifier of a registered client from its stored public key
+	 *
+	 * @param clientId
+	 * @return PublicKeyVerify : null if client is not registered
+	 */
+	PublicKeyVerify getVerifier(int clientId) {
+		PublicKey publicKey = getPublicKey(clientId);
+		return publicKey == null ? null : new PrefixedEd25519Verify(publicKey);
+	}
+
+	/**
+	 * Number of allocated client IDs
+	 *
+	 * @return int
+	 */
+	int size() {
+		return nextId.get();
+	}
+
+	private static byte[] serialize(KeysetHandle publicKey) throws GeneralSecurityException, IOException {
+		ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+		publicKey.writeNoSecret(BinaryKeysetWriter.withOutputStream(serialized));
+		return serialized.toByteArray();
+	}
+
+	private static byte[] sha256(byte[] data) throws GeneralSecurityException {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new GeneralSecurityException(e);
+		}
+	}
+
+	/**
+	 * Reads raw key, key ID and output prefix of a public keyset that contains
+	 * exactly one enabled Ed25519 key
+	 *
+	 * @param publicKey
+	 * @return PublicKey
+	 * @throws GeneralSecurityException if keyset has another form
+	 * @throws IOException
+	 */
+	static PublicKey parse(KeysetHandle publicKey) throws GeneralSecurityException, IOException {
+		byte[] serialized = serialize(publicKey);
+		Keyset keyset = Keyset.parseFrom(serialized);
+		if (keyset.getKeyCount() != 1 || keyset.getKey(0).getStatus() != KeyStatusType.ENABLED
+				|| !ED25519_PUBLIC_KEY_TYPE.equals(keyset.getKey(0).getKeyData().getTypeUrl())) {
+			throw new GeneralSecurityException("only keysets with a single Ed25519 public key are supported");
+		}
+		Keyset.Key key = keyset.getKey(0);
+		byte[] rawKey = Ed25519PublicKey.parseFrom(key.getKeyData().getValue()).getKeyValue().toByteArray();
+		if (rawKey.length != KEY_LENGTH || key.getOutputPrefixType() == OutputPrefixType.UNKNOWN_PREFIX
+				|| key.getOutputPrefixType() == OutputPrefixType.UNRECOGNIZED) {
+			throw new GeneralSecurityException("invalid Ed25519 public key");
+		}
+		return new PublicKey(rawKey, key.getKeyId(), key.getOutputPrefixType(), sha256(serialized));
+	}
+
+	private void store(int id, PublicKey publicKey) {
+		Chunk chunk = chunkFor(id);
+		int index = id & CHUNK_MASK;
+		System.arraycopy(publicKey.key, 0, chunk.keys, index * KEY_LENGTH, KEY_LENGTH);
+		System.arraycopy(publicKey.fingerprint, 0, chunk.fingerprints, index * FINGERPRINT_LENGTH,
+				FINGERPRINT_LENGTH);
+		chunk.keyIds[index] = publicKey.keyId;
+		chunk.states.set(index, publicKey.outputPrefixType.getNumber() + 1);
+	}
+
+	private Chunk chunkFor(int id) {
+		int c = id >>> CHUNK_BITS;
+		Chunk chunk = chunks.get(c);
+		if (chunk == null) {
+			chunks.compareAndSet(c, null, new Chunk());
+			chunk = chunks.get(c);
+		}
+		return chunk;
+	}
+
+	private boolean hasFingerprint(int id, byte[] fingerprint) {
+		Chunk chunk = chunks.get(id >>> CHUNK_BITS);
+		int offset = (id & CHUNK_MASK) * FINGERPRINT_LENGTH;
+		return Arrays.equals(chunk.fingerprints, offset, offset + FINGERPRINT_LENGTH, fingerprint, 0,
+				FINGERPRINT_LENGTH);
+	}
+
+	private byte[] fingerprintOf(int id) {
+		Chunk chunk = chunks.get(id >>> CHUNK_BITS);
+		int offset = (id & CHUNK_MASK) * FINGERPRINT_LENGTH;
+		return Arrays.copyOfRange(chunk.fingerprints, offset, offset + FINGERPRINT_LENGTH);
+	}
+
+	private Segment segmentOf(int hash) {
+		return segments[hash >>> (32 - SEGMENT_BITS)];
+	}
+
+	private static int hash(byte[] fingerprint) {
+		return ByteBuffer.wrap(fingerprint).getInt();
+	}
+
+	/**
+	 * Verifier for signatures of a Tink Ed25519 key that is stored as raw key.
+	 * Checks the Tink output prefix of the signature like a keyset-based
+	 * verifier and verifies the remaining signature with the raw key.
+	 */
+	static final class PrefixedEd25519Verify implements PublicKeyVerify {
+
+		private static final int PREFIX_LENGTH = 5;
+		private static final byte TINK_START_BYTE = 1;
+		private static final byte LEGACY_START_BYTE = 0;
+
+		private final Ed25519Verify verify;
+		private final OutputPrefixType outputPrefixType;
+		private final byte[] prefix;
+
+		PrefixedEd25519Verify(PublicKey publicKey) {
+			this.verify = new Ed25519Verify(publicKey.key);
+			this.outputPrefixType = publicKey.outputPrefixType;
+			switch (outputPrefixType) {
+			case TINK:
+				prefix = ByteBuffer.allocate(PREFIX_LENGTH).put(TINK_START_BYTE).putInt(publicKey.keyId).array();
+				break;
+			case LEGACY:
+			case CRUNCHY:
+				prefix = ByteBuffer.allocate(PREFIX_LENGTH).put(LEGACY_START_BYTE).putInt(publicKey.keyId).array();
+				break;
+			default:
+				prefix = new byte[0];
+			}
+		}
+
+		@Override
+		public void verify(byte[] signature, byte[] data) throws GeneralSecurityException {
+			if (signature.length < prefix.length
+					|| !Arrays.equals(signature, 0, prefix.length, prefix, 0, prefix.length)) {
+				throw new GeneralSecurityException("invalid signature");
+			}
+			if (outputPrefixType == OutputPrefixType.LEGACY) {
+				data = Arrays.copyOf(data, data.length + 1);
+			}
+			verify.verify(Arrays.copyOfRange(signature, prefix.length, signature.length), data);
+		}
+	}
+
+}
@@ -0,0 +1,397 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+import main.OrderStore.StoredOrder;
+
+/**
+ * On-disk cold tier of the {@link OrderStore}.
+ *
+ * Orders that no longer fit into the in-memory queue of a client are moved to
+ * a file of that client instead of being dropped. The records are copied
+ * unchanged out of the off-heap ring, so they stay encrypted on disk and have
+ * the same layout: sequence number (long), length (int), encrypted order.
+ *
+ * A file is only written while the queue of its client is locked, so the
+ * records of a file are in the order of their sequence numbers. Readers open
+ * their own channel and never block writers.
+ *
+ * A sparse index of every client file keeps the sequence number and file
+ * offset of every INDEX_INTERVAL-th record in memory (16 bytes each). A read
+ * starts at the closest indexed record in front of the requested page, so
+ * paging through a deep cold file does not read it from the start every
+ * time. The index of a file of an earlier run is built with its first read or
+ * write.
+ */
+class ColdOrderStore {
+
+	private static final String FILE_PREFIX = "client-";
+	private static final String FILE_SUFFIX = ".cold";
+	private static final int HEADER_BYTES = Long.BYTES + Integer.BYTES;
+	// number of records per entry of the sparse index
+	private static final int INDEX_INTERVAL = 64;
+
+	/**
+	 * Open cold file of a client
+	 */
+	private static final class ColdFile {
+		final FileChannel channel;
+		// sequence number of the last record in the file
+		long lastSequence;
+
+		ColdFile(FileChannel channel, long lastSequence) {
+			this.channel = channel;
+			this.lastSequence = lastSequence;
+		}
+	}
+
+	/**
+	 * Sparse index of the records of a cold file, guarded by its own monitor
+	 */
+	private static final class SparseIndex {
+		private long[] sequences = new long[16];
+		private long[] offsets = new long[16];
+		private int size;
+		// records seen and sequence number of the last one
+		private long records;
+		private long lastSequence;
+
+		/**
+		 * Adds a record that was written behind all records of the index
+		 */
+		synchronized void add(long sequence, long offset) {
+			if (records > 0 && sequence <= lastSequence) {
+				return;
+			}
+			if (records++ % INDEX_INTERVAL == 0) {
+				if (size == sequences.length) {
+					sequences = Arrays.copyOf(sequences, size * 2);
+					offsets = Arrays.copyOf(offsets, size * 2);
+				}
+				sequences[size] = sequence;
+				offsets[size] = offset;
+				size++;
+			}
+			lastSequence = sequence;
+		}
+
+		/**
+		 * File offset of the last indexed record up to a sequence number, the
+		 * records in front of it are not needed
+		 */
+		synchronized long offsetFor(long afterSequence) {
+			int low = 0;
+			int high = size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (sequences[middle] <= afterSequence) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low == 0 ? 0 : offsets[low - 1];
+		}
+	}
+
+	private final Path directory;
+	// clients that have a cold file
+	private final Set<Integer> clients = ConcurrentHashMap.newKeySet();
+	// cold files opened for writing, closed when the queue of the client is idle
+	private final ConcurrentHashMap<Integer, ColdFile> open = new ConcurrentHashMap<Integer, ColdFile>();
+	// sparse indexes of the cold files
+	private final ConcurrentHashMap<Integer, SparseIndex> indexes = new ConcurrentHashMap<Integer, SparseIndex>();
+
+	private final LongAdder spilled = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+
+	/**
+	 * Opens the cold tier in a directory, creating the directory if needed
+	 *
+	 * @param directory
+	 * @param keepExisting: keeps the cold files of an earlier run, only useful
+	 *                      if sequence numbers continue across runs, i.e. with
+	 *                      the order journal
+	 * @throws IOException
+	 */
+	ColdOrderStore(Path directory, boolean keepExisting) throws IOException {
+		this.directory = Files.createDirectories(directory);
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				int clientId;
+				try {
+					clientId = Integer.parseInt(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					// not a cold file of this store, left alone
+					continue;
+				}
+				if (keepExisting) {
+					clients.add(clientId);
+				} else {
+					Files.delete(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves a record of an in-memory ring to the cold file of its client. A
+	 * record that is already in the file, e.g. because the queue was rebuilt
+	 * from the journal, is skipped. Called while the queue of the client is
+	 * locked.
+	 *
+	 * @param clientId
+	 * @param sequence:    sequence number of the record
+	 * @param ring:        off-heap ring of the queue
+	 * @param position:    offset of the record in the ring
+	 * @param recordBytes: size of the record including its header
+	 * @return boolean : false if the record could not be written and is lost
+	 */
+	boolean spill(int clientId, long sequence, ByteBuffer ring, int position, int recordBytes) {
+		try {
+			ColdFile file = open.get(clientId);
+			if (file == null) {
+				file = openForWriting(clientId);
+				open.put(clientId, file);
+			}
+			if (sequence <= file.lastSequence) {
+				return true;
+			}
+			long offset = file.channel.position();
+
+			// the record may wrap around the end of the ring
+			ByteBuffer first = ring.duplicate();
+			first.position(position);
+			first.limit(Math.min(ring.capacity(), position + recordBytes));
+			ByteBuffer second = ring.duplicate();
+			second.position(0);
+			second.limit(recordBytes - first.remaining());
+			ByteBuffer[] parts = { first, second };
+			while (first.hasRemaining() || second.hasRemaining()) {
+				file.channel.write(parts);
+			}
+			file.lastSequence = sequence;
+			SparseIndex index = indexes.get(clientId);
+			if (index != null) {
+				index.add(sequence, offset);
+			}
+			spilled.increment();
+			return true;
+		} catch (IOException e) {
+			failures.increment();
+			return false;
+		}
+	}
+
+	/**
+	 * Reads one page of the cold orders of a client. The file is streamed from
+	 * the indexed record in front of the page, only the orders of the page are
+	 * kept in memory.
+	 *
+	 * @param clientId
+	 * @param afterSequence:  orders up to this sequence number are skipped
+	 * @param beforeSequence: first sequence number that is not read, e.g. the
+	 *                        oldest order still in memory
+	 * @param limit:          maximum number of returned orders
+	 * @return List : orders oldest first, empty if client has no cold orders
+	 */
+	List<StoredOrder> read(int clientId, long afterSequence, long beforeSequence, int limit) {
+		List<StoredOrder> orders = new ArrayList<StoredOrder>();
+		if (!clients.contains(clientId)) {
+			return orders;
+		}
+		try (FileChannel channel = FileChannel.open(file(clientId), StandardOpenOption.READ)) {
+			channel.position(index(clientId, channel).offsetFor(afterSequence));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			// a record at the end may still be written, it is newer than the
+			// records in memory and skipped
+			while (orders.size() < limit) {
+				long sequence = in.readLong();
+				int length = in.readInt();
+				if (sequence >= beforeSequence || length < 0) {
+					break;
+				}
+				if (sequence <= afterSequence) {
+					skipFully(in, length);
+					continue;
+				}
+				byte[] encryptedOrder = new byte[length];
+				in.readFully(encryptedOrder);
+				orders.add(new StoredOrder(sequence, encryptedOrder));
+			}
+		} catch (EOFException | NoSuchFileException e) {
+			// end of file, or client was registered by the directory listing only
+		} catch (IOException e) {
+			failures.increment();
+		}
+		return orders;
+	}
+
+	/**
+	 * Forces the open cold files to disk. Files that were closed in between
+	 * were forced when they were closed.
+	 *
+	 * @throws IOException
+	 */
+	void force() throws IOException {
+		for (ColdFile file : open.values()) {
+			try {
+				file.channel.force(false);
+			} catch (ClosedChannelException e) {
+				// closed by its queue meanwhile
+			}
+		}
+	}
+
+	/**
+	 * Forces and closes the cold file of a client, it is opened again with the
+	 * next record. Called while the queue of the client is locked.
+	 *
+	 * @param clientId
+	 */
+	void close(int clientId) {
+		ColdFile file = open.remove(clientId);
+		if (file != null) {
+			try {
+				try {
+					file.channel.force(false);
+				} finally {
+					file.channel.close();
+				}
+			} catch (IOException e) {
+				failures.increment();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the cold files of all clients that are not kept, e.g. files of
+	 * an earlier run whose clients could not be restored
+	 *
+	 * @param keep: tests a client ID
+	 * @return int : number of deleted files
+	 * @throws IOException
+	 */
+	int retain(IntPredicate keep) throws IOException {
+		int deleted = 0;
+		for (Integer clientId : clients) {
+			if (!keep.test(clientId)) {
+				close(clientId);
+				clients.remove(clientId);
+				indexes.remove(clientId);
+				Files.deleteIfExists(file(clientId));
+				deleted++;
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Number of moved records and write failures in one line
+	 *
+	 * @return String
+	 */
+	String stats() {
+		return spilled.sum() + " orders moved to disk, " + clients.size() + " cold files, " + open.size()
+				+ " open, " + failures.sum() + " failures";
+	}
+
+	/**
+	 * Opens the cold file of a client behind its last complete record
+	 */
+	private ColdFile openForWriting(int clientId) throws IOException {
+		FileChannel channel = FileChannel.open(file(clientId), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		SparseIndex index = new SparseIndex();
+		long end = scan(channel, index);
+		// drop a record that was torn by a crash
+		channel.truncate(end);
+		channel.position(end);
+		indexes.put(clientId, index);
+		clients.add(clientId);
+		return new ColdFile(channel, index.lastSequence);
+	}
+
+	/**
+	 * Sparse index of the file of a client, built by scanning the record
+	 * headers if the file was not read or written yet
+	 */
+	private SparseIndex index(int clientId, FileChannel channel) throws IOException {
+		SparseIndex index = indexes.get(clientId);
+		if (index == null) {
+			SparseIndex scanned = new SparseIndex();
+			scan(channel, scanned);
+			index = indexes.putIfAbsent(clientId, scanned);
+			if (index == null) {
+				index = scanned;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Reads the record headers of a file into an index
+	 *
+	 * @return long : end of the last complete record
+	 */
+	private static long scan(FileChannel channel, SparseIndex index) throws IOException {
+		long end = 0;
+		long size = channel.size();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		while (end + HEADER_BYTES <= size) {
+			header.clear();
+			readFully(channel, header, end);
+			long sequence = header.getLong(0);
+			int length = header.getInt(Long.BYTES);
+			if (length < 0 || end + HEADER_BYTES + length > size) {
+				break;
+			}
+			index.add(sequence, end);
+			end += HEADER_BYTES + length;
+		}
+		return end;
+	}
+
+	private static void skipFully(DataInputStream in, int bytes) throws IOException {
+		while (bytes > 0) {
+			int skipped = in.skipBytes(bytes);
+			if (skipped <= 0) {
+				throw new EOFException("cold file ended early");
+			}
+			bytes -= skipped;
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer target, long position) throws IOException {
+		while (target.hasRemaining()) {
+			if (channel.read(target, position + target.position()) < 0) {
+				throw new EOFException("cold file ended early");
+			}
+		}
+	}
+
+	private Path file(int clientId) {
+		return directory.resolve(FILE_PREFIX + clientId + FILE_SUFFIX);
+	}
+
+}
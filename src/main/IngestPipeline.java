@@ -0,0 +1,271 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Staged processing of incoming messages.
+ *
+ * Every stage (e.g. verify, encrypt, store) is split into lanes. A lane is one
+ * worker thread with a bounded ring buffer that is filled by the stage in front
+ * of it. A message is routed by its key, the client ID, to the same lane in
+ * every stage, so the messages of a client pass every stage in the order they
+ * were submitted, while different clients are processed in parallel. A full
+ * buffer blocks the stage in front of it, so a slow stage slows down its
+ * producers instead of growing memory. The buffers have a fixed capacity; each
+ * message takes one small {@link Ingest} and its response future. Each stage
+ * counts the messages it processed and reports its throughput and queue depth.
+ *
+ * When the pipeline is stopped, messages that are still waiting in a buffer
+ * are completed with an {@link IllegalStateException}.
+ */
+class IngestPipeline {
+
+	// time a submit waits for room in a full buffer before it checks again
+	// whether the pipeline was stopped
+	private static final long OFFER_WAIT_MILLIS = 10;
+	// time stop waits for a worker to finish its current message
+	private static final long JOIN_MILLIS = 1_000;
+
+	/**
+	 * Message on its way through the pipeline. Each stage stores its result here
+	 * for the following stage; the ring buffers hand the message over safely
+	 * between the stage threads.
+	 */
+	static final class Ingest {
+		final int key;
+		final SignedMessage signedMessage;
+		final CompletableFuture<String> response = new CompletableFuture<String>();
+
+		Message message;
+		byte[] encryptedOrder;
+
+		Ingest(int key, SignedMessage signedMessage) {
+			this.key = key;
+			this.signedMessage = signedMessage;
+		}
+	}
+
+	/**
+	 * One stage of the pipeline. The step returns true if the message has to be
+	 * handed to the next stage, false if the step already completed the response.
+	 */
+	static final class Stage {
+		final String name;
+		final Predicate<Ingest> step;
+		// one ring buffer per lane, every lane has one worker thread
+		final List<BlockingQueue<Ingest>> lanes;
+		final LongAdder processed = new LongAdder();
+
+		// processed count and time of the last report, for throughput calculation
+		private long lastProcessed;
+		private long lastReport = System.nanoTime();
+
+		Stage(String name, int lanes, int capacity, Predicate<Ingest> step) {
+			this.name = name;
+			this.step = step;
+			this.lanes = new ArrayList<BlockingQueue<Ingest>>(lanes);
+			for (int lane = 0; lane < lanes; lane++) {
+				this.lanes.add(new ArrayBlockingQueue<Ingest>(capacity));
+			}
+		}
+
+		/**
+		 * Ring buffer of the lane of a key
+		 *
+		 * @param key
+		 * @return BlockingQueue
+		 */
+		BlockingQueue<Ingest> lane(int key) {
+			return lanes.get(Math.floorMod(key, lanes.size()));
+		}
+
+		/**
+		 * Current number of messages waiting for this stage
+		 *
+		 * @return int
+		 */
+		int queueDepth() {
+			int depth = 0;
+			for (BlockingQueue<Ingest> lane : lanes) {
+				depth += lane.size();
+			}
+			return depth;
+		}
+
+		/**
+		 * Messages per second processed since the last call of this method
+		 *
+		 * @return double
+		 */
+		synchronized double throughput() {
+			long now = System.nanoTime();
+			long count = processed.sum();
+			double rate = (count - lastProcessed) / ((now - lastReport) / 1_000_000_000.0);
+			lastProcessed = count;
+			lastReport = now;
+			return rate;
+		}
+	}
+
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private final List<Thread> workers = new ArrayList<Thread>();
+	private volatile boolean running;
+
+	/**
+	 * Adds a stage behind all already added stages
+	 *
+	 * @param name
+	 * @param lanes:    number of lanes of the stage, each with a worker thread
+	 * @param capacity: size of the ring buffer of every lane
+	 * @param step
+	 * @return IngestPipeline
+	 */
+	IngestPipeline addStage(String name, int lanes, int capacity, Predicate<Ingest> step) {
+		stages.add(new Stage(name, Math.max(1, lanes), capacity, step));
+		return this;
+	}
+
+	/**
+	 * Starts the worker threads of all stages
+	 */
+	synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		for (int s = 0; s < stages.size(); s++) {
+			Stage stage = stages.get(s);
+			Stage next = s + 1 < stages.size() ? stages.get(s + 1) : null;
+			for (int lane = 0; lane < stage.lanes.size(); lane++) {
+				BlockingQueue<Ingest> input = stage.lanes.get(lane);
+				Thread worker = new Thread(() -> work(stage, input, next), "ingest-" + stage.name + "-" + lane);
+				worker.setDaemon(true);
+				workers.add(worker);
+				worker.start();
+			}
+		}
+	}
+
+	/**
+	 * Stops all worker threads. Messages still waiting in a buffer are not
+	 * processed anymore, their responses complete exceptionally.
+	 */
+	synchronized void stop() {
+		running = false;
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+		for (Thread worker : workers) {
+			try {
+				worker.join(JOIN_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		workers.clear();
+		drain();
+	}
+
+	boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Hands a message to the first stage. Blocks while the ring buffer of its
+	 * lane is full.
+	 *
+	 * @param key:           client ID of the message, selects its lanes
+	 * @param signedMessage: decoded envelope of the message
+	 * @return CompletableFuture : response, completed by the stage that finishes
+	 *         the message, exceptionally if the pipeline was stopped
+	 * @throws InterruptedException
+	 */
+	CompletableFuture<String> submit(int key, SignedMessage signedMessage) throws InterruptedException {
+		Ingest ingest = new Ingest(key, signedMessage);
+		BlockingQueue<Ingest> lane = stages.get(0).lane(key);
+		while (!lane.offer(ingest, OFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+			if (!running) {
+				ingest.response.completeExceptionally(stopped());
+				return ingest.response;
+			}
+		}
+		if (!running) {
+			// stop may have drained the buffers before the message arrived
+			drain();
+		}
+		return ingest.response;
+	}
+
+	/**
+	 * Throughput and queue depth of every stage in one line
+	 *
+	 * @return String
+	 */
+	String report() {
+		StringBuilder report = new StringBuilder();
+		for (Stage stage : stages) {
+			report.append(report.length() == 0 ? "" : " | ").append(stage.name).append(": ")
+					.append(String.format("%.1f", stage.throughput())).append(" msg/s, queue ")
+					.append(stage.queueDepth());
+		}
+		return report.toString();
+	}
+
+	List<Stage> getStages() {
+		return stages;
+	}
+
+	private void work(Stage stage, BlockingQueue<Ingest> input, Stage next) {
+		while (running) {
+			Ingest ingest;
+			try {
+				ingest = input.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				boolean forward = stage.step.test(ingest);
+				stage.processed.increment();
+				if (forward) {
+					if (next != null) {
+						next.lane(ingest.key).put(ingest);
+					} else {
+						ingest.response.complete("{\"Failure\"}");
+					}
+				}
+			} catch (InterruptedException e) {
+				ingest.response.completeExceptionally(stopped());
+				return;
+			} catch (RuntimeException e) {
+				ingest.response.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * Completes the responses of all waiting messages exceptionally
+	 */
+	private void drain() {
+		for (Stage stage : stages) {
+			for (BlockingQueue<Ingest> lane : stage.lanes) {
+				Ingest ingest;
+				while ((ingest = lane.poll()) != null) {
+					ingest.response.completeExceptionally(stopped());
+				}
+			}
+		}
+	}
+
+	private static IllegalStateException stopped() {
+		return new IllegalStateException("ingest pipeline is stopped");
+	}
+
+}
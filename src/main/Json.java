@@ -0,0 +1,32 @@
+package main;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Shared Jackson readers and writers for all message types.
+ * 
+ * ObjectReader and ObjectWriter instances are immutable and thread-safe, so
+ * one instance per type is created here and used by client and server for
+ * every message. This keeps Jackson's serializer caches alive instead of
+ * rebuilding them with a new ObjectMapper per message.
+ */
+final class Json {
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	// streaming factory for messages that are parsed without data binding
+	static final JsonFactory FACTORY = MAPPER.getFactory();
+
+	static final ObjectReader MESSAGE_READER = MAPPER.readerFor(Message.class);
+	static final ObjectWriter MESSAGE_WRITER = MAPPER.writerFor(Message.class);
+
+	static final ObjectWriter SIGNED_MESSAGE_WRITER = MAPPER.writerFor(SignedMessage.class);
+
+	private Json() {
+
+	}
+
+}
@@ -5,7 +5,6 @@ import java.util.HashMap;
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
  * Class which realizes the message creation. These messages are used for the interaction between
@@ -21,7 +20,8 @@ public class Message {
 
 	// Shows different kinds of messages that can be used
 	enum MessageType {
-		BuyStock, SellStock, ServerResponse, GetOrders, ServerSendOrders
+		BuyStock, SellStock, ServerResponse, GetOrders, ServerSendOrders, OpenSession, ServerSendOrdersCursor,
+		GetSessionChallenge, ServerSessionChallenge
 	}
 
 	private SenderType senderType;
@@ -65,9 +65,7 @@ public class Message {
 
 	public static String createMessage(SenderType senderType, MessageType messageType,
 			HashMap<String, String> messageParameters) throws JsonProcessingException {
-		ObjectMapper mapper = new ObjectMapper();
-
-		return mapper.writeValueAsString(new Message(senderType, messageType, messageParameters));
+		return Json.MESSAGE_WRITER.writeValueAsString(new Message(senderType, messageType, messageParameters));
 	}
 
 	public static String createBuyStockMessage(String stockISIN, String amount) throws JsonProcessingException {
@@ -79,9 +77,10 @@ public class Message {
 		return createMessage(SenderType.Client, MessageType.BuyStock, messageParameters);
 	}
 
-	public static String createServerSendOrdersMessage(String order) throws JsonProcessingException {
+	public static String createServerSendOrdersMessage(String order, long sequence) throws JsonProcessingException {
 		HashMap<String, String> messageParameters = new HashMap<String, String>();
 		messageParameters.put("order", order);
+		messageParameters.put("sequence", String.valueOf(sequence));
 		return createMessage(SenderType.Server, MessageType.ServerSendOrders, messageParameters);
 	}
 	
@@ -90,6 +89,21 @@ public class Message {
 
 		return createMessage(SenderType.Client, MessageType.GetOrders, messageParameters);
 	}
+
+	public static String createGetNewOrdersMessage(long sinceSequence, int pageSize) throws JsonProcessingException {
+		HashMap<String, String> messageParameters = new HashMap<String, String>();
+
+		messageParameters.put("since", String.valueOf(sinceSequence));
+		messageParameters.put("pageSize", String.valueOf(pageSize));
+
+		return createMessage(SenderType.Client, MessageType.GetOrders, messageParameters);
+	}
+
+	public static String createServerSendOrdersCursorMessage(String cursor) throws JsonProcessingException {
+		HashMap<String, String> messageParameters = new HashMap<String, String>();
+		messageParameters.put("cursor", cursor);
+		return createMessage(SenderType.Server, MessageType.ServerSendOrdersCursor, messageParameters);
+	}
 	
 	public static String createSellStockMessage(String stockISIN, String amount) throws JsonProcessingException {
 		HashMap<String, String> messageParameters = new HashMap<String, String>();
@@ -100,6 +114,28 @@ public class Message {
 		return createMessage(SenderType.Client, MessageType.SellStock, messageParameters);
 	}
 
+	public static String createGetSessionChallengeMessage() throws JsonProcessingException {
+		HashMap<String, String> messageParameters = new HashMap<String, String>();
+
+		return createMessage(SenderType.Client, MessageType.GetSessionChallenge, messageParameters);
+	}
+
+	public static String createServerSessionChallengeMessage(String challenge) throws JsonProcessingException {
+		HashMap<String, String> messageParameters = new HashMap<String, String>();
+		messageParameters.put("challenge", challenge);
+		return createMessage(SenderType.Server, MessageType.ServerSessionChallenge, messageParameters);
+	}
+
+	public static String createOpenSessionMessage(String encryptedSessionKey, String challenge)
+			throws JsonProcessingException {
+		HashMap<String, String> messageParameters = new HashMap<String, String>();
+
+		messageParameters.put("sessionKey", encryptedSessionKey);
+		messageParameters.put("challenge", challenge);
+
+		return createMessage(SenderType.Client, MessageType.OpenSession, messageParameters);
+	}
+
 	public static String createServerResponseMessage(boolean result) throws JsonProcessingException {
 		HashMap<String, String> messageParameters = new HashMap<String, String>();
 
@@ -0,0 +1,286 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Open order blocks of the clients for the block storage mode of the server.
+ *
+ * In block mode the orders of a client are not encrypted one by one. They are
+ * gathered in an open block of the client, and a full block is encoded and
+ * handed to a {@link BlockStore} that encrypts and stores it as one record.
+ * A chatty client then pays the AEAD call, nonce, tag and key prefix once per
+ * block instead of once per order.
+ *
+ * Block layout: number of orders (int), end offset of every order relative to
+ * the start of the order data (int each), order data. The offsets are the
+ * index of the block, so any order of a decrypted block is found without
+ * reading the others.
+ *
+ * Durability: an order is only acknowledged when its block was sealed and
+ * stored, i.e. durable with the journal. Until then it is held in plaintext in
+ * memory only and lost if the server crashes; its client did not get an
+ * answer yet. A block is sealed when it is full, when its oldest order has
+ * waited for the maximum time, or when its client asks for its orders, so
+ * the latency of an order grows by up to the maximum wait. A client that
+ * waits for every answer before it sends the next order gets blocks of one
+ * order and only the added latency. A block that cannot be stored fails all
+ * of its orders. Stored blocks are a unit: a damaged record loses all orders
+ * of its block, and queue capacity and spilling to disk count blocks, not
+ * orders.
+ */
+class OrderBlocks {
+
+	/**
+	 * Encrypts and stores a sealed block. Called while the open block of the
+	 * client is locked, so the blocks of a client are stored in order.
+	 */
+	interface BlockStore {
+		CompletableFuture<Boolean> store(int clientId, byte[] block);
+	}
+
+	/**
+	 * Open block of one client, guarded by its own monitor
+	 */
+	private static final class Block {
+		final List<byte[]> orders = new ArrayList<byte[]>();
+		// completed with the result of storing the block
+		final List<CompletableFuture<Boolean>> waiters = new ArrayList<CompletableFuture<Boolean>>();
+		int bytes;
+		// time of the first order in nanoseconds
+		long openedAt;
+		// set when the block was removed from the open blocks
+		boolean retired;
+	}
+
+	private final int maxOrders;
+	private final int maxBytes;
+	private final BlockStore store;
+	private final ConcurrentHashMap<Integer, Block> open = new ConcurrentHashMap<Integer, Block>();
+	// set by close, later orders are sealed at once
+	private volatile boolean closed;
+
+	private final LongAdder sealedBlocks = new LongAdder();
+	private final LongAdder sealedOrders = new LongAdder();
+	private final LongAdder failedBlocks = new LongAdder();
+
+	/**
+	 * Constructor of open blocks
+	 *
+	 * @param maxOrders: number of orders after which a block is sealed
+	 * @param maxBytes:  order bytes after which a block is sealed, a larger
+	 *                   order is stored in a block of its own
+	 * @param store:     encrypts and stores sealed blocks
+	 */
+	OrderBlocks(int maxOrders, int maxBytes, BlockStore store) {
+		this.maxOrders = Math.max(1, maxOrders);
+		this.maxBytes = Math.max(1, maxBytes);
+		this.store = store;
+	}
+
+	/**
+	 * Adds an order to the open block of a client, sealing the block if it is
+	 * full
+	 *
+	 * @param clientId
+	 * @param order:   plaintext order
+	 * @return CompletableFuture : completes with true once the block of the
+	 *         order is stored, with false if it could not be stored
+	 */
+	CompletableFuture<Boolean> add(int clientId, byte[] order) {
+		while (true) {
+			Block block = open.computeIfAbsent(clientId, id -> new Block());
+			synchronized (block) {
+				if (block.retired) {
+					// sealed and removed in between, a new one is opened
+					continue;
+				}
+				if (!block.orders.isEmpty() && block.bytes + order.length > maxBytes) {
+					seal(clientId, block);
+				}
+				if (block.orders.isEmpty()) {
+					block.openedAt = System.nanoTime();
+				}
+				CompletableFuture<Boolean> stored = new CompletableFuture<Boolean>();
+				block.orders.add(order);
+				block.waiters.add(stored);
+				block.bytes += order.length;
+				if (block.orders.size() >= maxOrders || block.bytes >= maxBytes || closed) {
+					seal(clientId, block);
+					retire(clientId, block);
+				}
+				return stored;
+			}
+		}
+	}
+
+	/**
+	 * Seals the open block of a client, e.g. before its orders are read
+	 *
+	 * @param clientId
+	 */
+	void flush(int clientId) {
+		Block block = open.get(clientId);
+		if (block == null) {
+			return;
+		}
+		synchronized (block) {
+			if (!block.retired) {
+				seal(clientId, block);
+				retire(clientId, block);
+			}
+		}
+	}
+
+	/**
+	 * Seals all blocks whose oldest order waited for the given time
+	 *
+	 * @param maxWaitMillis
+	 * @return int : number of sealed blocks
+	 */
+	int flushOlderThan(long maxWaitMillis) {
+		long openedBefore = System.nanoTime() - maxWaitMillis * 1_000_000;
+		int flushed = 0;
+		for (Map.Entry<Integer, Block> entry : open.entrySet()) {
+			Block block = entry.getValue();
+			synchronized (block) {
+				if (!block.retired && !block.orders.isEmpty() && block.openedAt - openedBefore <= 0) {
+					seal(entry.getKey(), block);
+					retire(entry.getKey(), block);
+					flushed++;
+				}
+			}
+		}
+		return flushed;
+	}
+
+	/**
+	 * Seals all open blocks. Orders added afterwards are sealed in a block of
+	 * their own, nobody waits for the maximum time any more.
+	 */
+	void close() {
+		closed = true;
+		flushOlderThan(0);
+	}
+
+	/**
+	 * Sealed blocks and orders in one line
+	 *
+	 * @return String
+	 */
+	String stats() {
+		long blocks = sealedBlocks.sum();
+		long orders = sealedOrders.sum();
+		return blocks + " blocks with " + orders + " orders sealed, "
+				+ String.format("%.1f", blocks == 0 ? 0.0 : (double) orders / blocks) + " orders per block, "
+				+ open.size() + " open, " + failedBlocks.sum() + " failed";
+	}
+
+	/**
+	 * Encodes orders into a block
+	 *
+	 * @param orders
+	 * @return byte[] : block with index
+	 */
+	static byte[] encode(List<byte[]> orders) {
+		int dataBytes = 0;
+		for (byte[] order : orders) {
+			dataBytes += order.length;
+		}
+		ByteBuffer block = ByteBuffer.allocate(Integer.BYTES * (1 + orders.size()) + dataBytes);
+		block.putInt(orders.size());
+		int end = 0;
+		for (byte[] order : orders) {
+			end += order.length;
+			block.putInt(end);
+		}
+		for (byte[] order : orders) {
+			block.put(order);
+		}
+		return block.array();
+	}
+
+	/**
+	 * Number of orders in a block
+	 *
+	 * @param block: decrypted block
+	 * @return int
+	 * @throws IllegalArgumentException if the block is malformed
+	 */
+	static int count(byte[] block) {
+		int count = block.length < Integer.BYTES ? -1 : ByteBuffer.wrap(block).getInt(0);
+		if (count < 0 || count > (block.length - Integer.BYTES) / Integer.BYTES) {
+			throw new IllegalArgumentException("malformed order block");
+		}
+		return count;
+	}
+
+	/**
+	 * Reads one order of a block with the index of the block
+	 *
+	 * @param block: decrypted block
+	 * @param index: position of the order in the block
+	 * @return byte[] : order
+	 * @throws IllegalArgumentException if the block is malformed or has no
+	 *                                  order at the index
+	 */
+	static byte[] order(byte[] block, int index) {
+		int count = count(block);
+		if (index < 0 || index >= count) {
+			throw new IllegalArgumentException("no order " + index + " in block of " + count);
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(block);
+		int data = Integer.BYTES * (1 + count);
+		int start = index == 0 ? 0 : buffer.getInt(Integer.BYTES * index);
+		int end = buffer.getInt(Integer.BYTES * (1 + index));
+		if (start < 0 || end < start || data + end > block.length) {
+			throw new IllegalArgumentException("malformed order block");
+		}
+		byte[] order = new byte[end - start];
+		System.arraycopy(block, data + start, order, 0, order.length);
+		return order;
+	}
+
+	/**
+	 * Hands the orders of a block to the block store and resets the block.
+	 * Called while the block is locked.
+	 */
+	private void seal(int clientId, Block block) {
+		if (block.orders.isEmpty()) {
+			return;
+		}
+		byte[] encoded = encode(block.orders);
+		List<CompletableFuture<Boolean>> waiters = new ArrayList<CompletableFuture<Boolean>>(block.waiters);
+		sealedBlocks.increment();
+		sealedOrders.add(block.orders.size());
+		block.orders.clear();
+		block.waiters.clear();
+		block.bytes = 0;
+		// none of the orders was acknowledged yet, a block that cannot be
+		// stored is answered with a failure to all of them
+		store.store(clientId, encoded).whenComplete((stored, error) -> {
+			boolean success = error == null && stored;
+			if (!success) {
+				failedBlocks.increment();
+			}
+			for (CompletableFuture<Boolean> waiter : waiters) {
+				waiter.complete(success);
+			}
+		});
+	}
+
+	/**
+	 * Removes an empty block from the open blocks. Called while the block is
+	 * locked.
+	 */
+	private void retire(int clientId, Block block) {
+		block.retired = true;
+		open.remove(clientId, block);
+	}
+
+}
@@ -0,0 +1,502 @@
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of all accepted encrypted orders and client
+ * registrations.
+ *
+ * The journal consists of segment files of a fixed size that are memory-mapped
+ * one after another. Appending an order only copies it into the mapped segment,
+ * there is no system call per order; only starting a new segment maps a new
+ * file. Every record carries a CRC32 checksum, so a record that was torn by a
+ * crash is detected during recovery and the journal continues behind the last
+ * complete record.
+ *
+ * Record layout: payload length (int), checksum (int), sequence number (long),
+ * client ID (int), record type (int), payload. A length of 0 marks the end of
+ * a segment.
+ *
+ * Several journals can share one sequence counter, e.g. the partitions of a
+ * {@link PartitionedJournal}. The sequence numbers of one journal are then
+ * increasing but not consecutive.
+ *
+ * Once a snapshot covers all records up to a sequence number, the segments
+ * that only hold older records can be deleted, so recovery only reads the
+ * records since the last snapshot.
+ *
+ * Appended records reach the disk whenever the operating system writes back
+ * the mapped pages. With group commit enabled a flusher thread forces the
+ * mapped segments to disk instead: it waits until a batch of records is
+ * pending or the oldest pending record waited for the maximum time, and then
+ * makes all of them durable with one flush. Writers wait for the flush that
+ * covers their record with {@link #whenDurable(long)}, so concurrent writers
+ * share the cost of a flush.
+ */
+class OrderJournal implements Closeable {
+
+	static final int HEADER_BYTES = Integer.BYTES + Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+	// record types
+	static final int ORDER = 0;
+	static final int REGISTRATION = 1;
+
+	// offsets of the header fields, the checksum covers all fields behind it
+	private static final int CHECKSUM_OFFSET = Integer.BYTES;
+	private static final int SEQUENCE_OFFSET = 2 * Integer.BYTES;
+	private static final int CLIENT_OFFSET = SEQUENCE_OFFSET + Long.BYTES;
+	private static final int TYPE_OFFSET = CLIENT_OFFSET + Integer.BYTES;
+
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	// pause before segments that could not be forced are forced again
+	private static final long RETRY_MILLIS = 10;
+
+	/**
+	 * Receives the records of the journal during recovery
+	 */
+	interface RecordHandler {
+		void record(long sequence, int type, int clientId, byte[] payload) throws IOException;
+	}
+
+	/**
+	 * Writer waiting for its record to become durable
+	 */
+	private static final class Waiter {
+		final long sequence;
+		final CompletableFuture<Boolean> durable = new CompletableFuture<Boolean>();
+
+		Waiter(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+
+	private final Path directory;
+	private final int segmentBytes;
+	// source of the sequence numbers, may be shared with other journals
+	private final AtomicLong sequences;
+	// records that trigger a flush, 0 if group commit is disabled
+	private final int batchSize;
+	private final long maxWaitNanos;
+
+	// fields are guarded by this
+	private MappedByteBuffer segment;
+	private int segmentIndex;
+	private long lastSequence;
+	private boolean closed;
+	// last sequence number of every completed segment by segment index
+	private final TreeMap<Integer, Long> segmentEnds = new TreeMap<Integer, Long>();
+
+	// group commit, guarded by this
+	private long durableSequence;
+	private long appendedRecords;
+	private long durableRecords;
+	private final List<MappedByteBuffer> unforcedSegments = new ArrayList<MappedByteBuffer>();
+	private final PriorityQueue<Waiter> waiters = new PriorityQueue<Waiter>(
+			(a, b) -> Long.compare(a.sequence, b.sequence));
+	private final Thread flusher;
+
+	/**
+	 * Opens the journal in a directory, creating the directory if needed. Call
+	 * {@link #recover(long, RecordHandler)} before appending to an existing
+	 * journal.
+	 *
+	 * @param directory
+	 * @param segmentBytes:  size of a segment file
+	 * @param batchSize:     number of pending records that triggers a flush, 0
+	 *                       disables group commit
+	 * @param maxWaitMicros: maximum time a record waits for its flush
+	 * @param sequences:     source of the sequence numbers
+	 * @throws IOException
+	 */
+	OrderJournal(Path directory, int segmentBytes, int batchSize, long maxWaitMicros, AtomicLong sequences)
+			throws IOException {
+		this.directory = Files.createDirectories(directory);
+		this.segmentBytes = segmentBytes;
+		this.sequences = sequences;
+		this.batchSize = batchSize;
+		this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+		if (batchSize > 0) {
+			flusher = new Thread(this::flushLoop, "journal-flusher-" + directory.getFileName());
+			flusher.setDaemon(true);
+			flusher.start();
+		} else {
+			flusher = null;
+		}
+	}
+
+	/**
+	 * Reads the records of the journal in the order they were appended and
+	 * positions the journal behind the last complete record.
+	 *
+	 * @param afterSequence: records up to this sequence number are skipped,
+	 *                       e.g. because a snapshot contains them
+	 * @param handler
+	 * @return long : number of recovered records
+	 * @throws IOException if a segment cannot be read or the handler fails
+	 */
+	synchronized long recover(long afterSequence, RecordHandler handler) throws IOException {
+		long records = 0;
+		List<Path> segments = segments();
+		for (int i = 0; i < segments.size(); i++) {
+			if (segment != null) {
+				segmentEnds.put(segmentIndex, lastSequence);
+			}
+			MappedByteBuffer mapped = map(segments.get(i));
+			records += scan(mapped, afterSequence, handler);
+			segmentIndex = index(segments.get(i));
+			segment = mapped;
+		}
+		// sequence numbers continue behind the snapshot even if the segments
+		// it covers are deleted
+		lastSequence = Math.max(lastSequence, afterSequence);
+		sequences.accumulateAndGet(lastSequence, Math::max);
+		// recovered records were read from disk
+		durableSequence = lastSequence;
+		return records;
+	}
+
+	/**
+	 * Appends an encrypted order
+	 *
+	 * @param clientId
+	 * @param payload
+	 * @return long : sequence number of the record, increasing with every record
+	 * @throws IOException if the journal is closed or a new segment cannot be
+	 *                     created
+	 */
+	long append(int clientId, byte[] payload) throws IOException {
+		return append(ORDER, clientId, payload);
+	}
+
+	/**
+	 * Appends a record
+	 *
+	 * @param type:    ORDER or REGISTRATION
+	 * @param clientId
+	 * @param payload
+	 * @return long : sequence number of the record, increasing with every record
+	 * @throws IOException if the journal is closed or a new segment cannot be
+	 *                     created
+	 */
+	synchronized long append(int type, int clientId, byte[] payload) throws IOException {
+		if (closed) {
+			throw new IOException("journal is closed");
+		}
+		int recordBytes = HEADER_BYTES + payload.length;
+		if (recordBytes > segmentBytes) {
+			throw new IOException("order of " + payload.length + " bytes exceeds journal segment size");
+		}
+		// keep room for the end marker behind the record
+		if (segment == null || segment.remaining() < recordBytes + Integer.BYTES) {
+			nextSegment();
+		}
+		long sequence = sequences.incrementAndGet();
+		lastSequence = sequence;
+		int start = segment.position();
+		segment.position(start + HEADER_BYTES);
+		segment.put(payload);
+		segment.putLong(start + SEQUENCE_OFFSET, sequence);
+		segment.putInt(start + CLIENT_OFFSET, clientId);
+		segment.putInt(start + TYPE_OFFSET, type);
+		segment.putInt(start + CHECKSUM_OFFSET, checksum(segment, start, payload.length));
+		// length is written last, a record without length is not part of the journal
+		segment.putInt(start, payload.length);
+
+		// wake up the flusher for the first record of a batch and for a full batch
+		long pending = ++appendedRecords - durableRecords;
+		if (flusher != null && (pending == 1 || pending == batchSize)) {
+			notifyAll();
+		}
+		return sequence;
+	}
+
+	/**
+	 * Waits asynchronously until a record is durable. Without group commit
+	 * records are left to the write-back of the operating system and the
+	 * returned future is already completed.
+	 *
+	 * @param sequence: sequence number returned by append
+	 * @return CompletableFuture : completes with true once the record was forced
+	 *         to disk, false if forcing failed
+	 */
+	synchronized CompletableFuture<Boolean> whenDurable(long sequence) {
+		if (flusher == null || sequence <= durableSequence) {
+			return CompletableFuture.completedFuture(true);
+		}
+		if (closed) {
+			return CompletableFuture.completedFuture(false);
+		}
+		Waiter waiter = new Waiter(sequence);
+		waiters.add(waiter);
+		return waiter.durable;
+	}
+
+	/**
+	 * Sequence number of the last appended or recovered record of this journal
+	 *
+	 * @return long
+	 */
+	synchronized long lastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Deletes the segments that only contain records up to a sequence number.
+	 * The current segment is never deleted.
+	 *
+	 * @param sequence: sequence number covered by a durable snapshot
+	 * @return int : number of deleted segments
+	 * @throws IOException
+	 */
+	synchronized int deleteUpTo(long sequence) throws IOException {
+		int deleted = 0;
+		while (!segmentEnds.isEmpty() && segmentEnds.firstEntry().getValue() <= sequence) {
+			int index = segmentEnds.pollFirstEntry().getKey();
+			Files.deleteIfExists(segmentFile(index));
+			deleted++;
+		}
+		return deleted;
+	}
+
+	/**
+	 * Closes the journal. With group commit the pending records are flushed
+	 * first. In every mode the current segment and the segments that were not
+	 * forced yet are forced to disk before they are released.
+	 *
+	 * @throws IOException if the segments cannot be forced
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		if (flusher != null) {
+			try {
+				flusher.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			List<MappedByteBuffer> forced = new ArrayList<MappedByteBuffer>(unforcedSegments);
+			if (segment != null) {
+				forced.add(segment);
+			}
+			unforcedSegments.clear();
+			segment = null;
+			try {
+				for (MappedByteBuffer mapped : forced) {
+					mapped.force();
+				}
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Forces batches of records to disk until the journal is closed
+	 */
+	private void flushLoop() {
+		boolean failed = false;
+		while (true) {
+			long target;
+			long targetRecords;
+			List<MappedByteBuffer> forced;
+			synchronized (this) {
+				try {
+					if (failed && !closed) {
+						// pause before the failed segments are forced again
+						wait(RETRY_MILLIS);
+					}
+					while (!closed && lastSequence == durableSequence) {
+						wait();
+					}
+					// collect more records until the batch is full or the first
+					// pending record waited long enough
+					long deadline = System.nanoTime() + maxWaitNanos;
+					long remaining;
+					while (!closed && appendedRecords - durableRecords < batchSize
+							&& (remaining = deadline - System.nanoTime()) > 0) {
+						TimeUnit.NANOSECONDS.timedWait(this, remaining);
+					}
+				} catch (InterruptedException e) {
+					closed = true;
+				}
+				// failed records of a closed journal are not retried here,
+				// close() forces their segments once more
+				if (closed && (lastSequence == durableSequence || failed)) {
+					complete(removeWaiters(Long.MAX_VALUE), false);
+					return;
+				}
+				target = lastSequence;
+				targetRecords = appendedRecords;
+				forced = new ArrayList<MappedByteBuffer>(unforcedSegments);
+				forced.add(segment);
+				unforcedSegments.clear();
+			}
+
+			// appends continue while the segments are forced, records behind
+			// the target are flushed with the next batch
+			boolean success = true;
+			try {
+				for (MappedByteBuffer mapped : forced) {
+					mapped.force();
+				}
+			} catch (UncheckedIOException e) {
+				success = false;
+			}
+			List<Waiter> done;
+			synchronized (this) {
+				if (success) {
+					durableSequence = target;
+					durableRecords = targetRecords;
+				} else {
+					// the records stay pending and their segments are forced
+					// again with the next batch, the current one is anyway
+					for (MappedByteBuffer mapped : forced) {
+						if (mapped != segment && !unforcedSegments.contains(mapped)) {
+							unforcedSegments.add(mapped);
+						}
+					}
+				}
+				done = removeWaiters(target);
+			}
+			failed = !success;
+			// writers continue outside of the journal lock
+			complete(done, success);
+		}
+	}
+
+	/**
+	 * Removes the waiters up to a sequence number, called while holding this
+	 */
+	private List<Waiter> removeWaiters(long sequence) {
+		List<Waiter> done = new ArrayList<Waiter>();
+		while (!waiters.isEmpty() && waiters.peek().sequence <= sequence) {
+			done.add(waiters.poll());
+		}
+		return done;
+	}
+
+	private static void complete(List<Waiter> done, boolean success) {
+		for (Waiter waiter : done) {
+			waiter.durable.complete(success);
+		}
+	}
+
+	/**
+	 * Reads the records of one segment. Stops at the end marker or at the first
+	 * incomplete record and leaves the buffer positioned there.
+	 */
+	private long scan(MappedByteBuffer mapped, long afterSequence, RecordHandler handler) throws IOException {
+		long records = 0;
+		while (mapped.remaining() >= HEADER_BYTES) {
+			int start = mapped.position();
+			int length = mapped.getInt(start);
+			if (length <= 0 || length > mapped.limit() - start - HEADER_BYTES
+					|| mapped.getInt(start + Integer.BYTES) != checksum(mapped, start, length)) {
+				break;
+			}
+			long sequence = mapped.getLong(start + SEQUENCE_OFFSET);
+			mapped.position(start + HEADER_BYTES + length);
+			lastSequence = Math.max(lastSequence, sequence);
+			if (sequence <= afterSequence) {
+				continue;
+			}
+			byte[] payload = new byte[length];
+			mapped.position(start + HEADER_BYTES);
+			mapped.get(payload);
+			handler.record(sequence, mapped.getInt(start + TYPE_OFFSET), mapped.getInt(start + CLIENT_OFFSET), payload);
+			records++;
+		}
+		return records;
+	}
+
+	/**
+	 * CRC32 over sequence number, client ID, type and payload of a record
+	 */
+	private static int checksum(MappedByteBuffer mapped, int start, int length) {
+		CRC32 crc = new CRC32();
+		ByteBuffer covered = mapped.duplicate();
+		covered.position(start + SEQUENCE_OFFSET);
+		covered.limit(start + HEADER_BYTES + length);
+		crc.update(covered);
+		return (int) crc.getValue();
+	}
+
+	private void nextSegment() throws IOException {
+		if (segment != null) {
+			if (flusher != null) {
+				unforcedSegments.add(segment);
+			}
+			segmentEnds.put(segmentIndex, lastSequence);
+			segmentIndex++;
+		}
+		segment = map(segmentFile(segmentIndex));
+	}
+
+	private Path segmentFile(int index) {
+		return directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+	}
+
+	private MappedByteBuffer map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE)) {
+			return channel.map(MapMode.READ_WRITE, 0, Math.max(segmentBytes, channel.size()));
+		}
+	}
+
+	/**
+	 * Checks if a directory holds journal segments
+	 *
+	 * @param directory
+	 * @return boolean
+	 * @throws IOException
+	 */
+	static boolean hasSegments(Path directory) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+				SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			return files.iterator().hasNext();
+		}
+	}
+
+	private List<Path> segments() throws IOException {
+		List<Path> segments = new ArrayList<Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+				SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				segments.add(file);
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private static int index(Path segment) {
+		String name = segment.getFileName().toString();
+		return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+}
@@ -0,0 +1,658 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Thread-safe store of the encrypted orders of all clients.
+ *
+ * Every client has its own bounded queue that drops its oldest order once the
+ * capacity is reached. Orders of different clients never share a lock: the
+ * queues are looked up lock-free and writers only lock the queue of their own
+ * client. Readers never take a lock and never block writers: they read
+ * optimistically and retry if a writer came in between. A reader that was
+ * overtaken several times in a row copies the bytes of its page out of the
+ * ring in one bulk copy, which keeps its read window short, and parses the
+ * copy once the window was validated.
+ *
+ * The orders are kept off-heap: each queue is a ring of records in a memory
+ * region of a {@link SlabAllocator}. The ring reuses its
+ * space as it wraps, grows to a larger region while it is not full yet and is
+ * moved to the smallest fitting region again when its client is idle. The
+ * heap only holds one small object per client, independent of the number of
+ * orders.
+ *
+ * Every record carries a sequence number that is assigned while the queue of
+ * the client is locked, so the records of a client are always stored in the
+ * order of their sequence numbers. A small index of record offsets (4 bytes
+ * per order on the heap) lets readers find the first order after a sequence
+ * number by binary search, so reading only the new orders of a client does
+ * not touch the older ones.
+ *
+ * Queues are created with the first order of a client, registered clients
+ * without orders cost nothing. Empty queues of idle clients are released.
+ * Without a cold tier the orders of a client stay in memory, so an idle
+ * client with orders keeps a region of the slab; it only shrinks to the
+ * smallest region its orders fit into.
+ *
+ * With a {@link ColdOrderStore} the oldest orders are moved to disk instead of
+ * being dropped when a queue is full, and idle queues are moved to disk
+ * completely. Reads return the cold orders followed by the orders in memory.
+ */
+class OrderStore {
+
+	/**
+	 * Assigns the sequence number of a new order, e.g. by appending it to the
+	 * journal. Sequence numbers are positive and increasing. Called while the
+	 * queue of the client is locked.
+	 */
+	interface Sequencer {
+		long next(int clientId, byte[] order) throws IOException;
+	}
+
+	// returned by add if the order was not stored
+	static final long NOT_STORED = -1;
+	// returned by the queue of a client if it was removed from the store
+	private static final long RETIRED = -2;
+	// version of a client without a queue in memory
+	static final long NO_VERSION = -1;
+
+	/**
+	 * Encrypted order with its sequence number
+	 */
+	static final class StoredOrder {
+		final long sequence;
+		final byte[] encryptedOrder;
+
+		StoredOrder(long sequence, byte[] encryptedOrder) {
+			this.sequence = sequence;
+			this.encryptedOrder = encryptedOrder;
+		}
+	}
+
+	/**
+	 * Orders of a queue read at one point in time
+	 */
+	private static final class Page {
+		// sequence number of the oldest order in memory, Long.MAX_VALUE if the
+		// queue is empty
+		final long firstSequence;
+		final List<StoredOrder> orders;
+
+		Page(long firstSequence, List<StoredOrder> orders) {
+			this.firstSequence = firstSequence;
+			this.orders = orders;
+		}
+	}
+
+	private static final Page EMPTY_PAGE = new Page(Long.MAX_VALUE, Collections.<StoredOrder>emptyList());
+
+	// size of the record header: sequence number and length
+	private static final int HEADER_BYTES = Long.BYTES + Integer.BYTES;
+	// optimistic read attempts that parse the ring directly, later attempts
+	// copy the page first
+	private static final int OPTIMISTIC_READS = 3;
+
+	/**
+	 * Bounded ring of the encrypted orders of one client
+	 */
+	static final class ClientOrders {
+
+		private final int clientId;
+		private final int capacity;
+		private final SlabAllocator allocator;
+		// null if dropped orders are not kept
+		private final ColdOrderStore cold;
+		private final AtomicLong versions;
+		private final StampedLock lock = new StampedLock();
+
+		// fields are guarded by the write lock of the queue
+		private ByteBuffer region;
+		// offset of the oldest record and of the next record to write
+		private int head;
+		private int tail;
+		// bytes and records in the ring
+		private int used;
+		private int count;
+		// offsets of the records in the ring, the oldest one at index first
+		private int[] offsets;
+		private int first;
+
+		// time of the last access in nanoseconds
+		private volatile long lastAccess = System.nanoTime();
+		// set when the queue was removed from the store
+		private boolean retired;
+		// changed after every stored order, written under the write lock
+		private volatile long version;
+
+		ClientOrders(int clientId, int capacity, SlabAllocator allocator, ColdOrderStore cold, AtomicLong versions) {
+			this.clientId = clientId;
+			this.capacity = capacity;
+			this.allocator = allocator;
+			this.cold = cold;
+			this.versions = versions;
+			this.version = versions.incrementAndGet();
+		}
+
+		/**
+		 * Adds an order and drops the oldest ones if capacity or space is reached.
+		 * Room is made before the sequence number is assigned, so an order that
+		 * cannot be stored is not journaled either.
+		 *
+		 * @param order
+		 * @param sequencer
+		 * @return long : sequence number of the order, NOT_STORED if order is
+		 *         larger than the largest region, an oldest order could not be
+		 *         moved to the cold tier or no sequence number could be
+		 *         assigned, RETIRED if queue was already removed from the store
+		 */
+		long add(byte[] order, Sequencer sequencer) {
+			int recordBytes = HEADER_BYTES + order.length;
+			if (recordBytes > allocator.maxRegionBytes()) {
+				return NOT_STORED;
+			}
+			long stamp = lock.writeLock();
+			try {
+				if (retired) {
+					return RETIRED;
+				}
+				lastAccess = System.nanoTime();
+				int free = region == null ? 0 : region.capacity() - used;
+				if (free < recordBytes && (region == null || region.capacity() < allocator.maxRegionBytes())) {
+					relocate(Math.min(used + recordBytes, allocator.maxRegionBytes()));
+				}
+				while (count >= capacity || region.capacity() - used < recordBytes) {
+					if (!dropOldest()) {
+						return NOT_STORED;
+					}
+				}
+				long sequence;
+				try {
+					sequence = sequencer.next(clientId, order);
+				} catch (IOException e) {
+					return NOT_STORED;
+				}
+				if (offsets == null || count == offsets.length) {
+					growOffsets();
+				}
+				offsets[(first + count) % offsets.length] = tail;
+				putNumber(region, tail, Long.BYTES, sequence);
+				putNumber(region, (tail + Long.BYTES) % region.capacity(), Integer.BYTES, order.length);
+				put(region, (tail + HEADER_BYTES) % region.capacity(), order);
+				tail = (tail + recordBytes) % region.capacity();
+				used += recordBytes;
+				count++;
+				// readers that see the new version also see the new order
+				version = versions.incrementAndGet();
+				return sequence;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		/**
+		 * Orders of client in memory after a sequence number, oldest first. Every
+		 * returned order is copied once out of the off-heap ring into the array
+		 * that is handed to decryption, skipped orders are not copied.
+		 *
+		 * @param afterSequence: orders up to this sequence number are skipped
+		 * @param limit:         maximum number of returned orders
+		 * @return Page : unmodifiable snapshot
+		 */
+		Page snapshot(long afterSequence, int limit) {
+			lastAccess = System.nanoTime();
+			return copy(afterSequence, limit);
+		}
+
+		/**
+		 * Orders of client in memory without counting as an access
+		 *
+		 * @param afterSequence: orders up to this sequence number are skipped
+		 * @param limit:         maximum number of returned orders
+		 * @return Page : unmodifiable snapshot
+		 */
+		Page copy(long afterSequence, int limit) {
+			for (int attempt = 0;; attempt++) {
+				long stamp = lock.tryOptimisticRead();
+				if (stamp == 0) {
+					// a writer holds the lock
+					Thread.yield();
+					continue;
+				}
+				try {
+					Page page = attempt < OPTIMISTIC_READS ? readDirect(stamp, afterSequence, limit)
+							: readCopy(stamp, afterSequence, limit);
+					if (page != null) {
+						return page;
+					}
+				} catch (RuntimeException e) {
+					// inconsistent state seen by an optimistic read, tried again
+				}
+			}
+		}
+
+		/**
+		 * Optimistic read that parses the orders straight out of the ring
+		 *
+		 * @return Page : null if a writer came in between
+		 */
+		private Page readDirect(long stamp, long afterSequence, int limit) {
+			List<StoredOrder> orders = null;
+			long firstSequence = Long.MAX_VALUE;
+			ByteBuffer ring = region;
+			int[] index = offsets;
+			int records = count;
+			int oldest = first;
+			if (records == 0) {
+				orders = new ArrayList<StoredOrder>(0);
+			} else if (ring != null && index != null) {
+				firstSequence = getNumber(ring, index[oldest % index.length], Long.BYTES);
+				int skipped = firstAfter(ring, index, oldest, records, afterSequence);
+				orders = skipped == records ? new ArrayList<StoredOrder>(0)
+						: read(ring, index[(oldest + skipped) % index.length], records - skipped, limit);
+			}
+			return orders != null && lock.validate(stamp)
+					? new Page(firstSequence, Collections.unmodifiableList(orders))
+					: null;
+		}
+
+		/**
+		 * Optimistic read that only copies the bytes of the page out of the ring
+		 * and parses the copy after the read was validated
+		 *
+		 * @return Page : null if a writer came in between
+		 */
+		private Page readCopy(long stamp, long afterSequence, int limit) {
+			ByteBuffer ring = region;
+			int[] index = offsets;
+			int records = count;
+			int oldest = first;
+			int start = head;
+			int bytesUsed = used;
+			if (records == 0 || ring == null || index == null) {
+				return records == 0 && lock.validate(stamp) ? EMPTY_PAGE : null;
+			}
+			int ringBytes = ring.capacity();
+			long firstSequence = getNumber(ring, index[oldest % index.length], Long.BYTES);
+			int skipped = firstAfter(ring, index, oldest, records, afterSequence);
+			int taken = Math.max(0, Math.min(records - skipped, limit));
+			byte[] page = null;
+			if (taken > 0) {
+				int from = index[(oldest + skipped) % index.length];
+				int bytes = skipped + taken == records ? bytesUsed - Math.floorMod(from - start, ringBytes)
+						: Math.floorMod(index[(oldest + skipped + taken) % index.length] - from, ringBytes);
+				if (bytes <= 0 || bytes > ringBytes) {
+					return null;
+				}
+				page = new byte[bytes];
+				get(ring, from, page);
+			}
+			if (!lock.validate(stamp)) {
+				return null;
+			}
+			List<StoredOrder> orders = page == null ? new ArrayList<StoredOrder>(0)
+					: read(ByteBuffer.wrap(page), 0, taken, taken);
+			return new Page(firstSequence, Collections.unmodifiableList(orders));
+		}
+
+		/**
+		 * Releases the queue if it is empty and was not accessed since the given
+		 * time. A non-empty idle queue is moved to disk if there is a cold tier,
+		 * otherwise to the smallest fitting region, which it keeps until its
+		 * orders are dropped.
+		 *
+		 * @param idleSince: time in nanoseconds
+		 * @return boolean : true if queue was released
+		 */
+		boolean releaseIfIdle(long idleSince) {
+			long stamp = lock.writeLock();
+			try {
+				if (retired || lastAccess - idleSince > 0) {
+					return false;
+				}
+				if (cold != null) {
+					// records stay in memory if they cannot be written
+					while (count > 0 && spillOldest()) {
+						removeOldest();
+					}
+					cold.close(clientId);
+				}
+				if (count == 0) {
+					if (region != null) {
+						allocator.release(region);
+						region = null;
+					}
+					offsets = null;
+					retired = true;
+					return true;
+				}
+				if (allocator.regionBytesFor(used) < region.capacity()) {
+					relocate(used);
+				}
+				return false;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		/**
+		 * Binary search for the number of records up to a sequence number
+		 */
+		private static int firstAfter(ByteBuffer ring, int[] index, int oldest, int records, long afterSequence) {
+			int low = 0;
+			int high = records;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (getNumber(ring, index[(oldest + middle) % index.length], Long.BYTES) <= afterSequence) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Copies consecutive records of a ring, returns null if the state is
+		 * inconsistent
+		 */
+		private static List<StoredOrder> read(ByteBuffer ring, int position, int records, int limit) {
+			int ringBytes = ring.capacity();
+			position %= ringBytes;
+			List<StoredOrder> orders = new ArrayList<StoredOrder>(Math.max(0, Math.min(records, limit)));
+			for (int i = 0; i < records && i < limit; i++) {
+				long sequence = getNumber(ring, position, Long.BYTES);
+				int length = (int) getNumber(ring, (position + Long.BYTES) % ringBytes, Integer.BYTES);
+				if (length < 0 || length > ringBytes - HEADER_BYTES) {
+					return null;
+				}
+				byte[] encryptedOrder = new byte[length];
+				get(ring, (position + HEADER_BYTES) % ringBytes, encryptedOrder);
+				orders.add(new StoredOrder(sequence, encryptedOrder));
+				position = (position + HEADER_BYTES + length) % ringBytes;
+			}
+			return orders;
+		}
+
+		/**
+		 * Removes the oldest record, moving it to the cold tier if there is one.
+		 * A record that cannot be moved stays in memory.
+		 *
+		 * @return boolean : false if the record could not be moved
+		 */
+		private boolean dropOldest() {
+			if (cold != null && !spillOldest()) {
+				return false;
+			}
+			removeOldest();
+			return true;
+		}
+
+		/**
+		 * Copies the oldest record to the cold tier
+		 *
+		 * @return boolean : false if the record could not be written
+		 */
+		private boolean spillOldest() {
+			return cold.spill(clientId, getNumber(region, head, Long.BYTES), region, head, oldestBytes());
+		}
+
+		private void removeOldest() {
+			int recordBytes = oldestBytes();
+			head = (head + recordBytes) % region.capacity();
+			used -= recordBytes;
+			count--;
+			first = (first + 1) % offsets.length;
+		}
+
+		/**
+		 * Doubles the offset index up to the capacity of the queue
+		 */
+		private void growOffsets() {
+			int[] larger = new int[offsets == null ? Math.min(capacity, 16) : Math.min(capacity, offsets.length * 2)];
+			for (int i = 0; i < count; i++) {
+				larger[i] = offsets[(first + i) % offsets.length];
+			}
+			offsets = larger;
+			first = 0;
+		}
+
+		private int oldestBytes() {
+			return HEADER_BYTES + (int) getNumber(region, (head + Long.BYTES) % region.capacity(), Integer.BYTES);
+		}
+
+		/**
+		 * Moves the records to a new region that can hold the given number of
+		 * bytes. Records are stored from the start of the new region.
+		 */
+		private void relocate(int bytes) {
+			ByteBuffer larger = allocator.allocate(Math.max(bytes, used));
+			if (region != null) {
+				byte[] live = new byte[used];
+				get(region, head, live);
+				larger.duplicate().put(live);
+				allocator.release(region);
+			}
+			region = larger;
+			head = 0;
+			tail = used % region.capacity();
+
+			// records are stored from the start of the region now
+			int position = 0;
+			for (int i = 0; i < count; i++) {
+				offsets[(first + i) % offsets.length] = position;
+				position += HEADER_BYTES + (int) getNumber(region, position + Long.BYTES, Integer.BYTES);
+			}
+		}
+
+		private static long getNumber(ByteBuffer ring, int position, int bytes) {
+			int ringBytes = ring.capacity();
+			if (position + bytes <= ringBytes) {
+				return bytes == Long.BYTES ? ring.getLong(position) : ring.getInt(position);
+			}
+			long value = 0;
+			for (int i = 0; i < bytes; i++) {
+				value = (value << 8) | (ring.get((position + i) % ringBytes) & 0xFF);
+			}
+			return bytes == Long.BYTES ? value : (int) value;
+		}
+
+		private static void putNumber(ByteBuffer ring, int position, int bytes, long value) {
+			int ringBytes = ring.capacity();
+			if (position + bytes <= ringBytes) {
+				if (bytes == Long.BYTES) {
+					ring.putLong(position, value);
+				} else {
+					ring.putInt(position, (int) value);
+				}
+				return;
+			}
+			for (int i = 0; i < bytes; i++) {
+				ring.put((position + i) % ringBytes, (byte) (value >>> (8 * (bytes - 1 - i))));
+			}
+		}
+
+		private static void get(ByteBuffer ring, int position, byte[] target) {
+			ByteBuffer source = ring.duplicate();
+			int first = Math.min(target.length, ring.capacity() - position);
+			source.position(position);
+			source.get(target, 0, first);
+			if (first < target.length) {
+				source.position(0);
+				source.get(target, first, target.length - first);
+			}
+		}
+
+		private static void put(ByteBuffer ring, int position, byte[] source) {
+			ByteBuffer target = ring.duplicate();
+			int first = Math.min(source.length, ring.capacity() - position);
+			target.position(position);
+			target.put(source, 0, first);
+			if (first < source.length) {
+				target.position(0);
+				target.put(source, first, source.length - first);
+			}
+		}
+	}
+
+	private final int capacity;
+	private final SlabAllocator allocator;
+	private final ColdOrderStore cold;
+	private final ConcurrentHashMap<Integer, ClientOrders> clients = new ConcurrentHashMap<Integer, ClientOrders>();
+	// source of the queue versions
+	private final AtomicLong versions = new AtomicLong();
+
+	/**
+	 * Constructor of order store
+	 *
+	 * @param capacity:  maximum number of orders kept in memory per client
+	 * @param allocator: off-heap memory for the queues, its largest region is
+	 *                   the maximum size of a queue
+	 * @param cold:      takes the orders that do not fit into memory, null if
+	 *                   they are dropped
+	 */
+	OrderStore(int capacity, SlabAllocator allocator, ColdOrderStore cold) {
+		this.capacity = capacity;
+		this.allocator = allocator;
+		this.cold = cold;
+	}
+
+	/**
+	 * Adds an encrypted order to the queue of a client. The queue is created
+	 * with the first order.
+	 *
+	 * @param clientId
+	 * @param encryptedOrder
+	 * @param sequencer:      assigns the sequence number of the order
+	 * @return long : sequence number of the order, NOT_STORED if order was not
+	 *         stored
+	 */
+	long add(int clientId, byte[] encryptedOrder, Sequencer sequencer) {
+		while (true) {
+			ClientOrders orders = clients.computeIfAbsent(clientId,
+					id -> new ClientOrders(id, capacity, allocator, cold, versions));
+			long sequence = orders.add(encryptedOrder, sequencer);
+			if (sequence != RETIRED) {
+				return sequence;
+			}
+			// queue was released in between, a new one is created
+		}
+	}
+
+	/**
+	 * One page of the orders of a client, oldest first. Only the orders of the
+	 * page are copied, from memory as well as from the cold tier.
+	 *
+	 * @param clientId
+	 * @param afterSequence: orders up to this sequence number are skipped, e.g.
+	 *                       the last order of the previous page
+	 * @param limit:         maximum number of returned orders
+	 * @return List : unmodifiable snapshot, empty for clients without orders
+	 */
+	List<StoredOrder> get(int clientId, long afterSequence, int limit) {
+		ClientOrders orders = clients.get(clientId);
+		Page hot = orders == null ? EMPTY_PAGE : orders.snapshot(afterSequence, limit);
+		if (cold == null || afterSequence >= hot.firstSequence) {
+			return hot.orders;
+		}
+		// the cold tier is read after the memory, orders that were moved to disk
+		// in between are in both and taken from memory
+		List<StoredOrder> page = cold.read(clientId, afterSequence, hot.firstSequence, limit);
+		if (page.isEmpty()) {
+			return hot.orders;
+		}
+		for (int i = 0; i < hot.orders.size() && page.size() < limit; i++) {
+			page.add(hot.orders.get(i));
+		}
+		return Collections.unmodifiableList(page);
+	}
+
+	/**
+	 * Version of the orders of a client. It changes with every stored order and
+	 * is read before the orders, so a page read afterwards is at least as new
+	 * as the version. Versions are unique across all queues, a queue that is
+	 * released and created again never repeats one.
+	 *
+	 * @param clientId
+	 * @return long : NO_VERSION if the client has no queue in memory
+	 */
+	long version(int clientId) {
+		ClientOrders orders = clients.get(clientId);
+		return orders == null ? NO_VERSION : orders.version;
+	}
+
+	/**
+	 * Releases the queues of all clients that were not accessed for the given
+	 * time. Empty queues are removed, others are moved to the cold tier or
+	 * shrunk to fit; without a cold tier a queue with orders is never removed.
+	 *
+	 * @param idleMillis
+	 * @return int : number of removed queues
+	 */
+	int releaseIdle(long idleMillis) {
+		long idleSince = System.nanoTime() - idleMillis * 1_000_000;
+		int released = 0;
+		for (Map.Entry<Integer, ClientOrders> entry : clients.entrySet()) {
+			if (entry.getValue().releaseIfIdle(idleSince)) {
+				clients.remove(entry.getKey(), entry.getValue());
+				released++;
+			}
+		}
+		return released;
+	}
+
+	/**
+	 * Passes the orders in memory of every client to a consumer, e.g. for a
+	 * snapshot. Orders in the cold tier are not included, they are already on
+	 * disk. Reading the queues does not keep their clients from being idle.
+	 *
+	 * @param consumer: receives the orders, oldest first, and the client ID
+	 */
+	void forEachQueue(ObjIntConsumer<List<StoredOrder>> consumer) {
+		for (Map.Entry<Integer, ClientOrders> entry : clients.entrySet()) {
+			List<StoredOrder> orders = entry.getValue().copy(0, Integer.MAX_VALUE).orders;
+			if (!orders.isEmpty()) {
+				consumer.accept(orders, entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Forces the orders in the cold tier to disk
+	 *
+	 * @throws IOException
+	 */
+	void force() throws IOException {
+		if (cold != null) {
+			cold.force();
+		}
+	}
+
+	/**
+	 * Number of clients that currently have a queue
+	 *
+	 * @return int
+	 */
+	int size() {
+		return clients.size();
+	}
+
+	/**
+	 * Off-heap memory usage in one line
+	 *
+	 * @return String
+	 */
+	String stats() {
+		return size() + " queues, " + allocator.usedBytes() + " of " + allocator.reservedBytes()
+				+ " off-heap bytes used" + (cold == null ? "" : ", " + cold.stats());
+	}
+
+}
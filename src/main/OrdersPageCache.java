@@ -0,0 +1,232 @@
+package main;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the last GetOrders response of every client.
+ *
+ * A response is stored with the version of the client queue it was built
+ * from, see {@link OrderStore#version(int)}, and with the request it answers.
+ * A poll that repeats the request while the queue has the same version gets
+ * the response with one map lookup, without decrypting and encoding the
+ * orders again. A stored order changes the version, so stale responses are
+ * never returned; they are replaced with the next response of their client or
+ * evicted.
+ *
+ * Memory is bounded by the total size of the cached responses. When a new
+ * response does not fit, the least recently used entry of a random sample of
+ * residents is evicted until it does. Entries also expire after a fixed time
+ * and are removed by {@link #expire()}, so a response that is not read again
+ * does not stay in memory for long.
+ *
+ * Hits are lock-free; only changes of the cache content take the cache lock.
+ */
+class OrdersPageCache {
+
+	// number of resident entries compared when looking for an eviction victim
+	private static final int SAMPLE_SIZE = 8;
+	// estimated memory of an entry without its response
+	private static final int ENTRY_BYTES = 64;
+
+	/**
+	 * Cached response of one client
+	 */
+	private static final class Entry {
+		final long version;
+		final long afterSequence;
+		final int pageSize;
+		final String page;
+		final long created;
+		final int bytes;
+		// time of the last hit in nanoseconds
+		volatile long lastAccess;
+		// position in the resident array, guarded by the cache lock
+		int slot;
+
+		Entry(long version, long afterSequence, int pageSize, String page, long created) {
+			this.version = version;
+			this.afterSequence = afterSequence;
+			this.pageSize = pageSize;
+			this.page = page;
+			this.created = created;
+			this.bytes = ENTRY_BYTES + page.length() * Character.BYTES;
+			this.lastAccess = created;
+		}
+	}
+
+	private final long maximumBytes;
+	private final long ttlNanos;
+	private final ConcurrentHashMap<Integer, Entry> entries = new ConcurrentHashMap<Integer, Entry>();
+
+	// client IDs of the resident entries, used for sampling eviction victims.
+	// Guarded by the cache lock
+	private int[] residents = new int[16];
+	private int residentCount;
+	private long usedBytes;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Constructor of cache
+	 *
+	 * @param maximumBytes: maximum estimated memory of all cached responses, 0
+	 *                      disables the cache
+	 * @param ttlMillis:    time after which a response is no longer returned
+	 */
+	OrdersPageCache(long maximumBytes, long ttlMillis) {
+		this.maximumBytes = Math.max(0, maximumBytes);
+		this.ttlNanos = ttlMillis * 1_000_000;
+	}
+
+	/**
+	 * Returns the cached response of a client if it answers the same request
+	 * and was built from the same version of the queue
+	 *
+	 * @param clientId
+	 * @param version:       current version of the queue of the client
+	 * @param afterSequence: orders up to this sequence number are skipped
+	 * @param pageSize:      requested number of orders
+	 * @return String : cached response or null on a miss
+	 */
+	String get(int clientId, long version, long afterSequence, int pageSize) {
+		Entry entry = entries.get(clientId);
+		long now = System.nanoTime();
+		if (entry == null || entry.version != version || entry.afterSequence != afterSequence
+				|| entry.pageSize != pageSize || now - entry.created > ttlNanos) {
+			misses.increment();
+			return null;
+		}
+		entry.lastAccess = now;
+		hits.increment();
+		return entry.page;
+	}
+
+	/**
+	 * Caches the response of a client, replacing its previous one. Responses
+	 * that are larger than an eighth of the cache are not stored.
+	 *
+	 * @param clientId
+	 * @param version:       version of the queue read before the response was
+	 *                       built
+	 * @param afterSequence: orders up to this sequence number are skipped
+	 * @param pageSize:      requested number of orders
+	 * @param page:          response
+	 */
+	void put(int clientId, long version, long afterSequence, int pageSize, String page) {
+		Entry entry = new Entry(version, afterSequence, pageSize, page, System.nanoTime());
+		if (entry.bytes > maximumBytes / 8) {
+			return;
+		}
+		synchronized (this) {
+			Entry previous = entries.get(clientId);
+			if (previous != null) {
+				remove(clientId, previous);
+			}
+			while (usedBytes + entry.bytes > maximumBytes) {
+				evict();
+			}
+			if (residentCount == residents.length) {
+				int[] larger = new int[residents.length * 2];
+				System.arraycopy(residents, 0, larger, 0, residentCount);
+				residents = larger;
+			}
+			entry.slot = residentCount;
+			residents[residentCount++] = clientId;
+			usedBytes += entry.bytes;
+			entries.put(clientId, entry);
+		}
+	}
+
+	/**
+	 * Removes all expired responses, e.g. periodically
+	 *
+	 * @return int : number of removed responses
+	 */
+	synchronized int expire() {
+		long now = System.nanoTime();
+		int expired = 0;
+		for (int slot = residentCount - 1; slot >= 0; slot--) {
+			int clientId = residents[slot];
+			Entry entry = entries.get(clientId);
+			if (now - entry.created > ttlNanos) {
+				remove(clientId, entry);
+				expired++;
+			}
+		}
+		return expired;
+	}
+
+	long hitCount() {
+		return hits.sum();
+	}
+
+	long missCount() {
+		return misses.sum();
+	}
+
+	long evictionCount() {
+		return evictions.sum();
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Counters of the cache in one line, for sizing the cache
+	 *
+	 * @return String
+	 */
+	String stats() {
+		long hitCount = hitCount();
+		long requests = hitCount + missCount();
+		long bytes;
+		synchronized (this) {
+			bytes = usedBytes;
+		}
+		return "size " + size() + ", " + bytes + " of " + maximumBytes + " bytes, hits " + hitCount + ", misses "
+				+ missCount() + ", evictions " + evictionCount() + ", hit rate "
+				+ String.format("%.3f", requests == 0 ? 0.0 : (double) hitCount / requests);
+	}
+
+	/**
+	 * Evicts the least recently used entry of a sample, expired entries first
+	 */
+	private void evict() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long now = System.nanoTime();
+		Entry victim = null;
+		int victimId = 0;
+		for (int i = 0; i < SAMPLE_SIZE; i++) {
+			int clientId = residents[random.nextInt(residentCount)];
+			Entry entry = entries.get(clientId);
+			if (now - entry.created > ttlNanos) {
+				victim = entry;
+				victimId = clientId;
+				break;
+			}
+			if (victim == null || entry.lastAccess - victim.lastAccess < 0) {
+				victim = entry;
+				victimId = clientId;
+			}
+		}
+		remove(victimId, victim);
+		evictions.increment();
+	}
+
+	private void remove(int clientId, Entry entry) {
+		entries.remove(clientId);
+		usedBytes -= entry.bytes;
+		// the last resident takes the slot of the removed one
+		int last = residents[--residentCount];
+		if (last != clientId) {
+			residents[entry.slot] = last;
+			entries.get(last).slot = entry.slot;
+		}
+	}
+
+}
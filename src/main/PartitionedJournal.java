@@ -0,0 +1,266 @@
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Journal that is split into independent {@link OrderJournal} partitions by
+ * client ID.
+ *
+ * All records of a client are in the same partition, so the partitions can be
+ * replayed in parallel while the records of every client are still applied in
+ * their original order. The partitions share one sequence counter, so sequence
+ * numbers are unique across partitions and a snapshot is described by a
+ * single sequence number. Appends of clients in different partitions do not
+ * contend for the same journal lock.
+ *
+ * With one partition the segments are stored directly in the directory,
+ * otherwise every partition has a subdirectory. The number of partitions is
+ * stored in a layout file in the directory when the journal is created and an
+ * existing journal is always opened with its own number of partitions, so the
+ * records of a client are found again after a configuration change.
+ */
+class PartitionedJournal implements Closeable {
+
+	private static final String PARTITION_PREFIX = "partition-";
+	private static final String LAYOUT_FILE = "partitions";
+
+	private final OrderJournal[] partitions;
+	private final AtomicLong sequences = new AtomicLong();
+
+	/**
+	 * Opens all partitions of the journal
+	 *
+	 * @param directory
+	 * @param partitions:    number of partitions of a new journal, an existing
+	 *                       journal keeps its own, see {@link #layout(Path, int)}
+	 * @param segmentBytes:  size of a segment file
+	 * @param batchSize:     group commit batch size, 0 disables group commit
+	 * @param maxWaitMicros: maximum time a record waits for its flush
+	 * @throws IOException if the directory does not hold a valid layout
+	 */
+	PartitionedJournal(Path directory, int partitions, int segmentBytes, int batchSize, long maxWaitMicros)
+			throws IOException {
+		this.partitions = new OrderJournal[layout(directory, partitions)];
+		for (int i = 0; i < this.partitions.length; i++) {
+			Path partitionDirectory = this.partitions.length == 1 ? directory
+					: Files.createDirectories(directory).resolve(String.format("%s%03d", PARTITION_PREFIX, i));
+			this.partitions[i] = new OrderJournal(partitionDirectory, segmentBytes, batchSize, maxWaitMicros,
+					sequences);
+		}
+	}
+
+	/**
+	 * Replays all partitions in parallel, see
+	 * {@link OrderJournal#recover(long, OrderJournal.RecordHandler)}. The
+	 * handler is called concurrently for records of different partitions.
+	 *
+	 * @param afterSequence: records up to this sequence number are skipped
+	 * @param threads:       number of partitions replayed at the same time
+	 * @param handler
+	 * @return long : number of recovered records
+	 * @throws IOException if a partition cannot be read or the handler fails
+	 */
+	long recover(long afterSequence, int threads, OrderJournal.RecordHandler handler) throws IOException {
+		if (partitions.length == 1 || threads <= 1) {
+			long records = 0;
+			for (OrderJournal partition : partitions) {
+				records += partition.recover(afterSequence, handler);
+			}
+			return records;
+		}
+
+		ExecutorService replay = Executors.newFixedThreadPool(Math.min(threads, partitions.length));
+		try {
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for (OrderJournal partition : partitions) {
+				results.add(replay.submit(() -> partition.recover(afterSequence, handler)));
+			}
+			long records = 0;
+			for (Future<Long> result : results) {
+				records += result.get();
+			}
+			return records;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("journal replay failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("journal replay interrupted", e);
+		} finally {
+			replay.shutdown();
+		}
+	}
+
+	/**
+	 * Appends a record to the partition of its client
+	 *
+	 * @param type:    OrderJournal.ORDER or OrderJournal.REGISTRATION
+	 * @param clientId
+	 * @param payload
+	 * @return long : sequence number of the record
+	 * @throws IOException if the journal is closed or a new segment cannot be
+	 *                     created
+	 */
+	long append(int type, int clientId, byte[] payload) throws IOException {
+		return partitionOf(clientId).append(type, clientId, payload);
+	}
+
+	/**
+	 * Waits asynchronously until a record of a client is durable
+	 *
+	 * @param clientId
+	 * @param sequence: sequence number returned by append
+	 * @return CompletableFuture : see {@link OrderJournal#whenDurable(long)}
+	 */
+	CompletableFuture<Boolean> whenDurable(int clientId, long sequence) {
+		return partitionOf(clientId).whenDurable(sequence);
+	}
+
+	/**
+	 * Last sequence number handed out by any partition. Every record up to it
+	 * was appended or is being appended by a thread that holds the queue lock
+	 * of its client.
+	 *
+	 * @return long
+	 */
+	long lastSequence() {
+		return sequences.get();
+	}
+
+	/**
+	 * Deletes the segments of all partitions that only contain records up to a
+	 * sequence number
+	 *
+	 * @param sequence: sequence number covered by a durable snapshot
+	 * @return int : number of deleted segments
+	 * @throws IOException
+	 */
+	int deleteUpTo(long sequence) throws IOException {
+		int deleted = 0;
+		for (OrderJournal partition : partitions) {
+			deleted += partition.deleteUpTo(sequence);
+		}
+		return deleted;
+	}
+
+	/**
+	 * Number of partitions
+	 *
+	 * @return int
+	 */
+	int partitions() {
+		return partitions.length;
+	}
+
+	/**
+	 * Closes all partitions, even if one of them fails
+	 *
+	 * @throws IOException of the first partition that failed
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (OrderJournal partition : partitions) {
+			try {
+				partition.close();
+			} catch (IOException e) {
+				if (failure == null) {
+					failure = e;
+				} else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Number of partitions of the journal in a directory. A new journal gets the
+	 * requested number, which is stored in the layout file. An existing journal
+	 * keeps the number of its layout file; a journal written without the file
+	 * gets it from the partitions on disk.
+	 *
+	 * @param directory
+	 * @param requested: number of partitions of a new journal
+	 * @return int : number of partitions
+	 * @throws IOException if the partitions on disk do not match the layout
+	 *                     file or each other
+	 */
+	static int layout(Path directory, int requested) throws IOException {
+		Files.createDirectories(directory);
+		Path layoutFile = directory.resolve(LAYOUT_FILE);
+		boolean rootSegments = OrderJournal.hasSegments(directory);
+		int partitionDirectories = 0;
+		int highestPartition = -1;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PARTITION_PREFIX + "*")) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					highestPartition = Math.max(highestPartition,
+							Integer.parseInt(name.substring(PARTITION_PREFIX.length())));
+					partitionDirectories++;
+				} catch (NumberFormatException e) {
+					throw new IOException("unexpected journal partition " + file);
+				}
+			}
+		}
+
+		int partitions;
+		if (Files.exists(layoutFile)) {
+			try {
+				partitions = Integer.parseInt(new String(Files.readAllBytes(layoutFile), StandardCharsets.UTF_8).trim());
+			} catch (NumberFormatException e) {
+				throw new IOException("damaged journal layout file " + layoutFile);
+			}
+			if (partitions < 1 || (partitions == 1 ? partitionDirectories > 0
+					: rootSegments || highestPartition >= partitions)) {
+				throw new IOException("journal in " + directory + " does not match its layout of " + partitions
+						+ " partitions");
+			}
+			return partitions;
+		}
+
+		if (rootSegments && partitionDirectories > 0) {
+			throw new IOException("journal in " + directory + " has segments of one and of several partitions");
+		}
+		if (partitionDirectories > 0 && highestPartition + 1 != partitionDirectories) {
+			throw new IOException("journal in " + directory + " misses partitions");
+		}
+		partitions = rootSegments ? 1 : partitionDirectories > 0 ? partitionDirectories : Math.max(1, requested);
+		Path temporary = directory.resolve(LAYOUT_FILE + ".tmp");
+		Files.write(temporary, Integer.toString(partitions).getBytes(StandardCharsets.UTF_8));
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		Files.move(temporary, layoutFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+		return partitions;
+	}
+
+	private OrderJournal partitionOf(int clientId) {
+		return partitions[Math.floorMod(clientId, partitions.length)];
+	}
+
+}
@@ -0,0 +1,113 @@
+package main;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.google.crypto.tink.proto.OutputPrefixType;
+
+/**
+ * Throughput benchmark for the startup recovery of the server.
+ *
+ * A partitioned journal with registrations and encrypted orders of many
+ * clients is written once. It is then replayed into a new registry and order
+ * store with an increasing number of threads, which shows how recovery scales
+ * with the number of cores. The journal files are in the page cache after the
+ * warm-up, so disk speed is not measured.
+ */
+public class RecoveryBenchmark {
+
+	private static final int CLIENTS = 10_000;
+	private static final int ORDERS = 1_000_000;
+	private static final int ORDER_BYTES = 100;
+
+	/**
+	 * @param args: optional maximum number of threads, also the number of
+	 *              journal partitions. Defaults to the number of cores
+	 */
+	public static void main(String[] args) throws IOException {
+
+		int cores = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		Path directory = Files.createTempDirectory("recovery-benchmark");
+		try {
+			long records = writeJournal(directory, cores);
+			p("journal with " + records + " records in " + cores + " partitions written");
+
+			// warm up page cache and JIT before measuring
+			replay(directory, cores, cores);
+
+			for (int threads = 1; threads < cores; threads *= 2) {
+				report(directory, cores, threads);
+			}
+			report(directory, cores, cores);
+		} finally {
+			delete(directory);
+		}
+	}
+
+	private static long writeJournal(Path directory, int partitions) throws IOException {
+		Random random = new Random(42);
+		try (PartitionedJournal journal = new PartitionedJournal(directory, partitions, 64 << 20, 0, 0)) {
+			for (int clientId = 0; clientId < CLIENTS; clientId++) {
+				byte[] key = new byte[ClientRegistry.KEY_LENGTH];
+				byte[] fingerprint = new byte[ClientRegistry.FINGERPRINT_LENGTH];
+				random.nextBytes(key);
+				random.nextBytes(fingerprint);
+				journal.append(OrderJournal.REGISTRATION, clientId, new ClientRegistry.PublicKey(key,
+						random.nextInt(), OutputPrefixType.TINK, fingerprint).toBytes());
+			}
+			byte[] order = new byte[ORDER_BYTES];
+			for (int i = 0; i < ORDERS; i++) {
+				random.nextBytes(order);
+				journal.append(OrderJournal.ORDER, random.nextInt(CLIENTS), order);
+			}
+			return journal.lastSequence();
+		}
+	}
+
+	private static void report(Path directory, int partitions, int threads) throws IOException {
+		long start = System.nanoTime();
+		long records = replay(directory, partitions, threads);
+		long nanos = System.nanoTime() - start;
+		p(threads + " threads: " + (long) (records / (nanos / 1_000_000_000.0)) + " records/s, "
+				+ nanos / 1_000_000 + " ms");
+	}
+
+	/**
+	 * Rebuilds registry and order store like the server does on startup
+	 */
+	private static long replay(Path directory, int partitions, int threads) throws IOException {
+		ClientRegistry clients = new ClientRegistry();
+		OrderStore queues = new OrderStore(100, new SlabAllocator(256, 64 * 1024, 1 << 20), null);
+		try (PartitionedJournal journal = new PartitionedJournal(directory, partitions, 64 << 20, 0, 0)) {
+			return journal.recover(0, threads, (sequence, type, clientId, payload) -> {
+				if (type == OrderJournal.REGISTRATION) {
+					clients.restore(clientId, ClientRegistry.PublicKey.fromBytes(payload));
+				} else {
+					queues.add(clientId, payload, (c, o) -> sequence);
+				}
+			});
+		}
+	}
+
+	private static void delete(Path directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(file);
+			}
+		}
+	}
+
+	/**
+	 * Auxiliary method for showing benchmark results
+	 *
+	 * @param s
+	 */
+	private static void p(String s) {
+		System.out.println("RecoveryBenchmark: " + s);
+	}
+
+}
@@ -0,0 +1,96 @@
+package main;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import main.Message.MessageType;
+import main.Message.SenderType;
+
+/**
+ * Simple throughput benchmark for the JSON handling of the ingest path.
+ * 
+ * One round trip creates an order message, wraps it into a signed message and
+ * parses both again on server side. The round trip is measured once with a new
+ * ObjectMapper per call and once with the shared readers and writers of
+ * {@link Json} and the single pass parsing of {@link SignedMessage#parse}.
+ */
+public class SerializationBenchmark {
+
+	private static final int WARMUP_ROUNDS = 20_000;
+	private static final int MEASURED_ROUNDS = 200_000;
+
+	private static final byte[] SIGNATURE = new byte[69];
+
+	public static void main(String[] args) throws IOException {
+
+		HashMap<String, String> messageParameters = new HashMap<String, String>();
+		messageParameters.put("stockISIN", "US0378331005");
+		messageParameters.put("amount", "100");
+
+		// warm up both variants before measuring
+		runPerCallMapper(messageParameters, WARMUP_ROUNDS);
+		runSharedReadersWriters(messageParameters, WARMUP_ROUNDS);
+
+		long start = System.nanoTime();
+		runPerCallMapper(messageParameters, MEASURED_ROUNDS);
+		long perCallNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		runSharedReadersWriters(messageParameters, MEASURED_ROUNDS);
+		long sharedNanos = System.nanoTime() - start;
+
+		p("new ObjectMapper per call: " + throughput(perCallNanos) + " messages/s");
+		p("shared ObjectReader/ObjectWriter: " + throughput(sharedNanos) + " messages/s");
+		p("speedup: " + String.format("%.2f", (double) perCallNanos / sharedNanos) + "x");
+	}
+
+	private static void runPerCallMapper(HashMap<String, String> messageParameters, int rounds)
+			throws IOException {
+		for (int i = 0; i < rounds; i++) {
+			Message message = new Message();
+			message.setSenderType(SenderType.Client);
+			message.setMessageType(MessageType.BuyStock);
+			message.setMessageParameters(messageParameters);
+			String content = new ObjectMapper().writeValueAsString(message);
+
+			SignedMessage signedMessage = new SignedMessage();
+			signedMessage.setClientId(i);
+			signedMessage.setContent(content);
+			signedMessage.setSignature(SIGNATURE);
+			String wire = new ObjectMapper().writeValueAsString(signedMessage);
+
+			ObjectMapper mapper = new ObjectMapper();
+			JsonNode received = mapper.readTree(wire);
+			mapper.treeToValue(received.get("content"), Message.class);
+		}
+	}
+
+	private static void runSharedReadersWriters(HashMap<String, String> messageParameters, int rounds)
+			throws IOException {
+		for (int i = 0; i < rounds; i++) {
+			String content = Message.createMessage(SenderType.Client, MessageType.BuyStock, messageParameters);
+			String wire = SignedMessage.createSignedMessage(i, content, SIGNATURE);
+
+			SignedMessage received = SignedMessage.parse(wire.getBytes(StandardCharsets.UTF_8));
+			received.getMessage();
+		}
+	}
+
+	private static long throughput(long nanos) {
+		return (long) (MEASURED_ROUNDS / (nanos / 1_000_000_000.0));
+	}
+
+	/**
+	 * Auxiliary method for showing benchmark results
+	 * 
+	 * @param s
+	 */
+	private static void p(String s) {
+		System.out.println("SerializationBenchmark: " + s);
+	}
+
+}
@@ -1,25 +1,43 @@
 package main;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-
-import org.apache.commons.collections4.map.HashedMap;
-import org.apache.commons.collections4.queue.CircularFifoQueue;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.crypto.tink.Aead;
+import com.google.crypto.tink.BinaryKeysetReader;
+import com.google.crypto.tink.CleartextKeysetHandle;
+import com.google.crypto.tink.HybridDecrypt;
 import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.Mac;
 import com.google.crypto.tink.PublicKeyVerify;
 import com.google.crypto.tink.aead.AeadConfig;
 import com.google.crypto.tink.aead.AeadKeyTemplates;
 import com.google.crypto.tink.aead.AeadWrapper;
 import com.google.crypto.tink.config.TinkConfig;
+import com.google.crypto.tink.hybrid.EciesAeadHkdfPrivateKeyManager;
+import com.google.crypto.tink.hybrid.HybridConfig;
 import com.google.crypto.tink.signature.PublicKeySignWrapper;
+import com.google.crypto.tink.subtle.Random;
 import main.Message.MessageType;
 
 /**
@@ -34,34 +52,321 @@ import main.Message.MessageType;
  * see unencrypted order.
  */
 public class Server extends Thread {
-	// Queue to store orders of a client with a specific ID
-	HashedMap<Integer, CircularFifoQueue<byte[]>> queues = new HashedMap<Integer, CircularFifoQueue<byte[]>>();
-	// maximum timeout of server used in "run" Method
-	private static int sendFrequency = 5000;
+	// maximum number of orders and bytes kept per client
+	static int orderQueueCapacity = 100;
+	static int orderQueueBytes = 64 * 1024;
+	// size of the off-heap buffers the order queues are allocated from
+	static int slabArenaBytes = 1 << 20;
+
+	// directory of the cold tier that takes the orders that do not fit into the
+	// queue of a client and the orders of idle clients. If not set, orders are
+	// dropped and idle clients with orders keep their memory
+	static Path spillDirectory = null;
+
+	// Queues to store orders of a client with a specific ID, thread-safe per client
+	final OrderStore queues;
+
+	// directory of the order journal, orders are only kept in memory if not set
+	static Path journalDirectory = null;
+	// size of a journal segment file
+	static int journalSegmentBytes = 64 << 20;
+	// number of partitions of a new journal, replayed in parallel on startup.
+	// An existing journal keeps the number it was created with
+	static int journalPartitions = 8;
+	// interval of snapshots of registry and order store, 0 disables them.
+	// Snapshots need the journal, it is shortened to the records behind the
+	// latest snapshot
+	static long snapshotIntervalMillis = 0;
+	// group commit: orders are forced to disk in batches of this size and are
+	// only confirmed once they are durable, 0 leaves writing to the OS
+	static int journalBatchSize = 0;
+	// maximum time an order waits for its batch to be forced to disk
+	static long journalMaxWaitMicros = 2_000;
+
+	// journal of all accepted orders, null if orders are only kept in memory
+	private final PartitionedJournal journal;
+	// assigns sequence numbers to stored orders, by appending them to the journal
+	// if there is one
+	private final OrderStore.Sequencer sequencer;
+
+	// verify the signatures of large message batches in parallel, spread over
+	// all cores. Every signature is still verified on its own
+	static boolean parallelVerification = true;
+	// minimum number of signatures that are verified in parallel
+	static int parallelVerificationThreshold = 64;
+
+	// size of the ring buffer of every lane of the ingest pipeline
+	static int pipelineCapacity = 1024;
+	// number of lanes of the ingest pipeline stages, each lane is one thread.
+	// A client always uses the same lane of a stage
+	static int verifyThreads = Runtime.getRuntime().availableProcessors();
+	static int encryptThreads = 2;
+	static int storeThreads = 2;
+	// interval of the statistics of pipeline, caches and order store, 0
+	// disables them
+	static long statsIntervalMillis = 10_000;
+	// maximum time a shutdown waits for running background tasks
+	private static final long SHUTDOWN_MILLIS = 5_000;
+	// set by shutdown, messages and registrations are rejected afterwards
+	private volatile boolean stopped;
 
 	// Key for encrypt orders before storing. Gets initialized with the first run of
 	// AppMain.java
 	static KeysetHandle masterKey;
 
-	// all registered clients with their Keys
-	List<KeysetHandle> clients = Collections.synchronizedList(new ArrayList<KeysetHandle>());
+	// Associated data used for encryption/decryption of stored orders
+	private static final byte[] ORDER_ASSOCIATED_DATA = new byte[0];
+	// Associated data of stored order blocks, binds the ciphertext to the tag of
+	// its record
+	private static final byte[] BLOCK_ASSOCIATED_DATA = "order-block".getBytes(StandardCharsets.UTF_8);
+	// first byte of every stored record, tells single orders and blocks apart
+	private static final byte SINGLE_RECORD = 'S';
+	private static final byte BLOCK_RECORD = 'B';
+
+	// orders per block in block mode, 0 or 1 encrypts every order on its own.
+	// See OrderBlocks for durability and recovery of blocks
+	static int orderBlockSize = 0;
+	// order bytes after which a block is sealed, must fit into orderQueueBytes
+	static int orderBlockBytes = 16 * 1024;
+	// time after which a block that is not full is sealed
+	static long orderBlockMaxWaitMillis = 5;
+	// open order blocks of the clients, null if orders are encrypted one by one
+	private final OrderBlocks blocks;
+	// seals blocks that are not full after the maximum wait, on its own thread
+	// so snapshots and other maintenance do not delay it. Null without blocks
+	private final ScheduledExecutorService sealer;
+
+	// Primitive of the master key, built once and shared by all request threads
+	private final Aead aead;
+
+	// all registered clients with their raw public keys
+	ClientRegistry clients = new ClientRegistry();
+
+	// number of orders per GetOrders page if the client does not ask for a size
+	static int ordersPageSize = 100;
+	// largest page a client can ask for
+	static int maxOrdersPageSize = 1000;
+	// decrypt the orders of large pages in parallel, spread over all cores
+	static boolean parallelDecryption = true;
+	// minimum number of orders of a page for which decryption works in parallel
+	static int parallelDecryptionThreshold = 64;
+	// memory of the cached GetOrders responses, 0 disables the cache
+	static long ordersCacheBytes = 16 << 20;
+	// time after which a cached GetOrders response is built again
+	static long ordersCacheTtlMillis = 10_000;
+	// last GetOrders response of every client, valid as long as its queue
+	// does not change
+	OrdersPageCache ordersCache = new OrdersPageCache(ordersCacheBytes, ordersCacheTtlMillis);
+
+	// time after which the order queue of an idle client is released, or
+	// shrunk to fit its orders if there is no spillDirectory
+	static long idleClientMillis = 60_000;
+
+	// maximum number of verifier primitives kept in memory
+	static int verifierCacheSize = 100_000;
+	// verifiers of the most active clients, rebuilt from the registry on a miss.
+	// Tink primitives are thread-safe, so they are shared by all request threads
+	VerifierCache verifiers = new VerifierCache(verifierCacheSize, clients::getVerifier);
+
+	// MAC primitive of the open session of a client. A session is opened with a
+	// signed message, all following messages of the client may carry a MAC
+	Map<Integer, Mac> sessions = new ConcurrentHashMap<Integer, Mac>();
+
+	// time in which a session challenge has to be used
+	static long sessionChallengeMillis = 30_000;
+	// unused session challenges of the clients, every challenge opens at most
+	// one session
+	private final Map<Integer, SessionChallenge> sessionChallenges = new ConcurrentHashMap<Integer, SessionChallenge>();
+	// ECIES key pair, clients encrypt their session keys with its public key
+	private final KeysetHandle sessionKeyPair;
+	private final HybridDecrypt sessionKeyDecrypt;
+
+	/**
+	 * Challenge handed out to a client for opening one session
+	 */
+	private static final class SessionChallenge {
+		final byte[] challenge;
+		final long expiresAt;
+
+		SessionChallenge(byte[] challenge, long expiresAt) {
+			this.challenge = challenge;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	// staged processing of messages: verify -> encrypt -> store, the envelope
+	// is decoded by the submitting thread
+	private final IngestPipeline pipeline = new IngestPipeline()
+			.addStage("verify", verifyThreads, pipelineCapacity, this::verifyStage)
+			.addStage("encrypt", encryptThreads, pipelineCapacity, this::encryptStage)
+			.addStage("store", storeThreads, pipelineCapacity, this::storeStage);
+
+	// background tasks of the server, e.g. releasing queues of idle clients
+	private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "server-maintenance");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Constructor of server. The Aead primitive for the already generated master
+	 * key is built here
+	 * 
+	 * @throws IllegalStateException if no primitive can be built from master key
+	 */
+	public Server() {
+		if (masterKey == null) {
+			throw new IllegalStateException("master key of server is not generated!");
+		}
+		try {
+			this.aead = masterKey.getPrimitive(Aead.class);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("master key of server is not usable!", e);
+		}
+		try {
+			HybridConfig.register();
+			this.sessionKeyPair = KeysetHandle
+					.generateNew(EciesAeadHkdfPrivateKeyManager.eciesP256HkdfHmacSha256Aes128GcmTemplate());
+			this.sessionKeyDecrypt = sessionKeyPair.getPrimitive(HybridDecrypt.class);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("session key pair of server cannot be generated!", e);
+		}
+		this.blocks = orderBlockSize > 1 ? new OrderBlocks(orderBlockSize, orderBlockBytes, this::storeBlock) : null;
+		this.sealer = blocks == null ? null : Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "order-block-sealer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (sealer != null) {
+			// orders are answered once their block is stored, so blocks are
+			// sealed from the start, not only while the server runs
+			sealer.scheduleWithFixedDelay(() -> blocks.flushOlderThan(orderBlockMaxWaitMillis),
+					orderBlockMaxWaitMillis, orderBlockMaxWaitMillis, TimeUnit.MILLISECONDS);
+		}
+
+		ColdOrderStore cold;
+		try {
+			// cold orders of an earlier run only match if the journal restores
+			// their queues
+			cold = spillDirectory == null ? null : new ColdOrderStore(spillDirectory, journalDirectory != null);
+			this.queues = new OrderStore(orderQueueCapacity, new SlabAllocator(256, orderQueueBytes, slabArenaBytes),
+					cold);
+		} catch (IOException e) {
+			throw new IllegalStateException("cold order store cannot be opened!", e);
+		}
+
+		if (journalDirectory == null) {
+			AtomicLong orderSequence = new AtomicLong();
+			this.journal = null;
+			this.sequencer = (clientId, order) -> orderSequence.incrementAndGet();
+		} else {
+			try {
+				this.journal = new PartitionedJournal(journalDirectory, journalPartitions, journalSegmentBytes,
+						journalBatchSize, journalMaxWaitMicros);
+				if (journal.partitions() != journalPartitions) {
+					p("journal keeps its " + journal.partitions() + " partitions instead of " + journalPartitions);
+				}
+				this.sequencer = (clientId, order) -> journal.append(OrderJournal.ORDER, clientId, order);
+				recoverState();
+				if (cold != null) {
+					int deleted = cold.retain(clientId -> clients.getPublicKey(clientId) != null);
+					if (deleted > 0) {
+						p(deleted + " cold files of unregistered clients deleted");
+					}
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException("order journal cannot be opened!", e);
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds registry and queues of all clients from the latest snapshot and
+	 * the journal records behind it. The journal partitions are replayed in
+	 * parallel, registry and order store are thread-safe and the records of a
+	 * client are all in one partition, its registration in front of its orders.
+	 * 
+	 * Orders of a client whose registration is neither in the snapshot nor in
+	 * the journal are dropped: journals written before registrations were
+	 * journaled hold such orders, and their client ID is handed out again to a
+	 * new client, which must not get the orders of the old one.
+	 * 
+	 * @throws IOException
+	 */
+	private void recoverState() throws IOException {
+		long start = System.nanoTime();
+		Map<Integer, Long> lastSequences = new HashMap<Integer, Long>();
+		long snapshotSequence = ServerSnapshot.load(journalDirectory, clients, queues, lastSequences);
+		int threads = Runtime.getRuntime().availableProcessors();
+		LongAdder orphans = new LongAdder();
+		long records = journal.recover(snapshotSequence, threads, (sequence, type, clientId, payload) -> {
+			if (type == OrderJournal.REGISTRATION) {
+				clients.restore(clientId, ClientRegistry.PublicKey.fromBytes(payload));
+			} else if (clients.getPublicKey(clientId) == null) {
+				orphans.increment();
+			} else if (sequence > lastSequences.getOrDefault(clientId, 0L)) {
+				// orders that arrived while the snapshot was written are in it
+				queues.add(clientId, payload, (c, o) -> sequence);
+			}
+		});
+		if (orphans.sum() > 0) {
+			p(orphans.sum() + " journaled orders of unregistered clients dropped");
+		}
+		p("recovered " + clients.size() + " clients and " + queues.size() + " queues from snapshot at journal record "
+				+ snapshotSequence + " and " + records + " journal records of " + journal.partitions()
+				+ " partitions in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+	}
+
+	/**
+	 * Writes a snapshot of registry and order store and deletes the journal
+	 * segments that all kept snapshots cover
+	 */
+	void writeSnapshot() {
+		try {
+			long start = System.nanoTime();
+			// everything up to this record is in the snapshot
+			long sequence = journal.lastSequence();
+			// the older kept snapshot needs the journal behind it
+			long oldestKept = ServerSnapshot.write(journalDirectory, sequence, clients, queues);
+			int deleted = journal.deleteUpTo(oldestKept);
+			p("snapshot at journal record " + sequence + " written in " + (System.nanoTime() - start) / 1_000_000
+					+ " ms, " + deleted + " journal segments deleted");
+		} catch (IOException e) {
+			p("Exception " + e.getLocalizedMessage());
+		}
+	}
 
 	/**
 	 * Server retrieves key for later signature validation from client
 	 * 
 	 * @param key publicKey of client
-	 * @return int : client ID
+	 * @return int : client ID or -1 if no verifier can be built from the key or
+	 *         the server is stopped
 	 */
-	public synchronized int registerClient(KeysetHandle key) {
+	public int registerClient(KeysetHandle key) {
 
-		if (clients.indexOf(key) == -1) {
-			clients.add(key);
+		if (stopped) {
+			return -1;
+		}
+		int id;
+		try {
+			if (journal == null) {
+				id = clients.register(key);
+			} else {
+				// sequence number of the registration record, 0 if key was known
+				long[] sequence = new long[1];
+				id = clients.register(key, (clientId, publicKey) -> sequence[0] = journal
+						.append(OrderJournal.REGISTRATION, clientId, publicKey.toBytes()));
+				if (sequence[0] != 0) {
+					journal.whenDurable(id, sequence[0]).join();
+				}
+			}
+		} catch (GeneralSecurityException | IOException e) {
+			p("Exception " + e.getLocalizedMessage());
+			return -1;
 		}
 
-		int id = clients.indexOf(key);
-
-		// new Queue of the client to store his later incoming orders
-		queues.put(id, new CircularFifoQueue<byte[]>(100));
+		// queue of the client is created with his first order
 		return id;
 	}
 
@@ -76,22 +381,159 @@ public class Server extends Thread {
 	 */
 	private boolean checkSignature(int clientID, byte[] order, byte[] signature) {
 
-		// Key of client. This key is used for signature validation
-		KeysetHandle key = clients.get(clientID);
+		// Verifier of client, cached or rebuilt from its raw public key
+		PublicKeyVerify verifier = verifiers.get(clientID);
 		// store result of the validation. Default : false
 		boolean resultValidation = false;
 
-		// TODO Perform validation of the given "signature" with
-		// the corresponding public key "key"  of the client. Store the result in
-		// "resultValidation"
-		
-		// Catch possible occurring exceptions
-		
-		
+		if (verifier == null || signature == null) {
+			return resultValidation;
+		}
+
+		try {
+			verifier.verify(signature, order);
+			resultValidation = true;
+		} catch (GeneralSecurityException e) {
+			resultValidation = false;
+		}
+
 		return resultValidation;
 
 	}
 
+	/**
+	 * Method to check the MAC of a message sent within a session.
+	 * 
+	 * @param clientID
+	 * @param order
+	 * @param mac
+	 * @return boolean resultValidation: shows if mac was valid
+	 */
+	private boolean checkMac(int clientID, byte[] order, byte[] mac) {
+
+		// MAC primitive of the open session of the client
+		Mac sessionMac = sessions.get(clientID);
+
+		if (sessionMac == null || mac == null) {
+			return false;
+		}
+
+		try {
+			sessionMac.verifyMac(mac, order);
+			return true;
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+
+	}
+
+	/**
+	 * Checks a message either by its signature or, if it was sent within a
+	 * session, by its MAC.
+	 * 
+	 * @param signedMessage
+	 * @return boolean : shows if message is authentic
+	 */
+	private boolean authenticate(SignedMessage signedMessage) {
+		if (signedMessage.getSignature() != null) {
+			return checkSignature(signedMessage.getClientId(), signedMessage.getContentBytes(),
+					signedMessage.getSignature());
+		}
+		return checkMac(signedMessage.getClientId(), signedMessage.getContentBytes(), signedMessage.getMac());
+	}
+
+	/**
+	 * Public key that clients encrypt their session keys with. Clients get it
+	 * together with their client ID, not over the message channel, so it
+	 * cannot be replaced by whoever sees the messages.
+	 * 
+	 * @return KeysetHandle : public ECIES keyset of the server
+	 * @throws IllegalStateException if the public keyset cannot be extracted
+	 */
+	public KeysetHandle getSessionPublicKey() {
+		try {
+			return sessionKeyPair.getPublicKeysetHandle();
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("session key pair of server is not usable!", e);
+		}
+	}
+
+	/**
+	 * Context of the encrypted session key of a handshake. It binds the
+	 * ciphertext to the client and the challenge, so it cannot be used in
+	 * another handshake.
+	 * 
+	 * @param clientId
+	 * @param challenge: challenge of the handshake, base64 encoded
+	 * @return byte[]
+	 */
+	static byte[] sessionContext(int clientId, String challenge) {
+		return ("session:" + clientId + ":" + challenge).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Hands out a new random challenge for opening a session. Only signed
+	 * requests get one; it replaces an unused challenge of the client and
+	 * expires after sessionChallengeMillis.
+	 * 
+	 * @param clientId
+	 * @param signedMessage
+	 * @return String : challenge message, failure if request was not signed
+	 * @throws JsonProcessingException
+	 */
+	private String newSessionChallenge(int clientId, SignedMessage signedMessage) throws JsonProcessingException {
+
+		if (signedMessage.getSignature() == null) {
+			return Message.createServerResponseMessage(false);
+		}
+		byte[] challenge = Random.randBytes(16);
+		sessionChallenges.put(clientId,
+				new SessionChallenge(challenge, System.nanoTime() + sessionChallengeMillis * 1_000_000));
+		return Message.createServerSessionChallengeMessage(Base64.getEncoder().encodeToString(challenge));
+
+	}
+
+	/**
+	 * Opens a session for a client with the MAC key sent in a signed message.
+	 * The key is encrypted with the session public key of the server for the
+	 * context of the handshake, see {@link #sessionContext(int, String)}, and
+	 * the message has to carry the current challenge of the client. A challenge
+	 * is used up by the first attempt, so a recorded handshake cannot be
+	 * replayed. Messages that are authenticated with a MAC themselves cannot
+	 * open a session.
+	 * 
+	 * @param clientId
+	 * @param signedMessage
+	 * @return boolean : shows if session could be opened
+	 */
+	private boolean openSession(int clientId, SignedMessage signedMessage) {
+
+		if (signedMessage.getSignature() == null) {
+			return false;
+		}
+		try {
+			Map<String, String> parameters = signedMessage.getMessage().getMessageParameters();
+			String sessionKey = parameters.get("sessionKey");
+			String challenge = parameters.get("challenge");
+			SessionChallenge expected = sessionChallenges.remove(clientId);
+			if (sessionKey == null || challenge == null || expected == null
+					|| System.nanoTime() - expected.expiresAt > 0
+					|| !MessageDigest.isEqual(expected.challenge, Base64.getDecoder().decode(challenge))) {
+				p("session handshake of client " + clientId + " rejected");
+				return false;
+			}
+			byte[] serializedKey = sessionKeyDecrypt.decrypt(Base64.getDecoder().decode(sessionKey),
+					sessionContext(clientId, challenge));
+			KeysetHandle key = CleartextKeysetHandle.read(BinaryKeysetReader.withBytes(serializedKey));
+			sessions.put(clientId, key.getPrimitive(Mac.class));
+			return true;
+		} catch (GeneralSecurityException | IOException | IllegalArgumentException e) {
+			p("Exception " + e.getLocalizedMessage());
+			return false;
+		}
+
+	}
+
 	/**
 	 * Method for symmetric encrypting incoming order of client
 	 * 
@@ -102,49 +544,130 @@ public class Server extends Thread {
 	 */
 	private boolean saveOrderEncrypted(byte[] order, int clientId) {
 
-		byte[] encryptedOrder = null;
-		KeysetHandle key = masterKey;
-
-		// TODO Perform a symmetric encryption of the given "order" with the already
-		// defined "key". Store the ciphertext in the already defined variable
-		// "encryptedOrder".
-		
-		// Catch possible occurring exceptions
+		if (blocks != null) {
+			// the order is encrypted with its block, this waits until the block
+			// is stored
+			return saveOrder(order, null, clientId).join();
+		}
+		byte[] encryptedOrder = encryptOrder(order);
 
-		
-		
 		p("encryptedOrder is (base64 encoded): " + (encryptedOrder != null ? Base64.getEncoder().encodeToString(encryptedOrder) : "null"));
-        // Add encrypted order in queue of client
-        if(encryptedOrder == null) {
-            return false;
-        } else {
-            return queues.get(clientId).add(encryptedOrder);
-        }
+		// with group commit this waits until the batch of the order is durable
+        return saveOrder(order, encryptedOrder, clientId).join();
         
 	}
 
 	/**
-	 * Method for decrypting stored encrypted order if clients requests his already
-	 * send orders
+	 * Method for symmetric encrypting an order with the master key
 	 * 
-	 * @param encryptedOrder encrypted order
-	 * @return String : plaintext of decrypted order
-	 * @throws CoseException
+	 * @param order order send by client
+	 * @return byte[] : record of a single order, ciphertext behind its tag, or
+	 *         null if encryption failed
 	 */
-	private String decryptOrder(byte[] encryptedOrder) {
-		KeysetHandle key = masterKey;
-		String decryptedOrder = null;
+	private byte[] encryptOrder(byte[] order) {
 
-		// TODO Perform a symmetric decryption of the given "encryptedOrder" with the
-		// already defined "key". Store the plaintext in the already defined String
-		// variable "decryptedOrder"
-		
-		// Catch possible occurring exceptions
-	
-		
-        return decryptedOrder;
-        
+		try {
+			return tagged(SINGLE_RECORD, aead.encrypt(order, ORDER_ASSOCIATED_DATA));
+		} catch (GeneralSecurityException e) {
+			p("Exception " + e.getLocalizedMessage());
+			return null;
+		}
+
+	}
 
+	private static byte[] tagged(byte tag, byte[] ciphertext) {
+		byte[] record = new byte[1 + ciphertext.length];
+		record[0] = tag;
+		System.arraycopy(ciphertext, 0, record, 1, ciphertext.length);
+		return record;
+	}
+
+	/**
+	 * Method for adding an already encrypted order in queue of client. The order
+	 * is visible in the queue right away, the returned future completes once it
+	 * is durable
+	 * 
+	 * @param encryptedOrder
+	 * @param clientId
+	 * @return CompletableFuture : shows if order could be stored
+	 */
+	private CompletableFuture<Boolean> storeOrder(byte[] encryptedOrder, int clientId) {
+
+		if (encryptedOrder == null) {
+			return CompletableFuture.completedFuture(false);
+		}
+		long sequence = queues.add(clientId, encryptedOrder, sequencer);
+		if (sequence == OrderStore.NOT_STORED) {
+			return CompletableFuture.completedFuture(false);
+		}
+		return journal == null ? CompletableFuture.completedFuture(true) : journal.whenDurable(clientId, sequence);
+
+	}
+
+	/**
+	 * Stores an order. In block mode the plaintext order is added to the open
+	 * block of its client and the returned future completes once the block is
+	 * stored.
+	 * 
+	 * @param order          plaintext order
+	 * @param encryptedOrder record of the order, see encryptOrder, unused in
+	 *                       block mode
+	 * @param clientId
+	 * @return CompletableFuture : shows if order could be stored
+	 */
+	private CompletableFuture<Boolean> saveOrder(byte[] order, byte[] encryptedOrder, int clientId) {
+		if (blocks == null) {
+			return storeOrder(encryptedOrder, clientId);
+		}
+		return blocks.add(clientId, order);
+	}
+
+	/**
+	 * Encrypts a sealed order block as one ciphertext and stores it like a
+	 * single order
+	 * 
+	 * @param clientId
+	 * @param block    encoded orders of the block
+	 * @return CompletableFuture : shows if block could be stored
+	 */
+	private CompletableFuture<Boolean> storeBlock(int clientId, byte[] block) {
+		try {
+			return storeOrder(tagged(BLOCK_RECORD, aead.encrypt(block, BLOCK_ASSOCIATED_DATA)), clientId);
+		} catch (GeneralSecurityException e) {
+			p("Exception " + e.getLocalizedMessage());
+			return CompletableFuture.completedFuture(false);
+		}
+	}
+
+	/**
+	 * Method for decrypting stored encrypted order if clients requests his already
+	 * send orders. A stored record is either a single order or a block of
+	 * orders, its tag tells which.
+	 * 
+	 * @param record tagged encrypted order or block
+	 * @return String[] : plaintexts of the decrypted orders, a single null entry
+	 *         if decryption failed
+	 */
+	private String[] decryptOrders(byte[] record) {
+		try {
+			if (record.length == 0 || (record[0] != SINGLE_RECORD && record[0] != BLOCK_RECORD)) {
+				throw new GeneralSecurityException("unknown order record");
+			}
+			byte[] ciphertext = Arrays.copyOfRange(record, 1, record.length);
+			if (record[0] == SINGLE_RECORD) {
+				return new String[] {
+						new String(aead.decrypt(ciphertext, ORDER_ASSOCIATED_DATA), StandardCharsets.UTF_8) };
+			}
+			byte[] decryptedBlock = aead.decrypt(ciphertext, BLOCK_ASSOCIATED_DATA);
+			String[] decryptedOrders = new String[OrderBlocks.count(decryptedBlock)];
+			for (int i = 0; i < decryptedOrders.length; i++) {
+				decryptedOrders[i] = new String(OrderBlocks.order(decryptedBlock, i), StandardCharsets.UTF_8);
+			}
+			return decryptedOrders;
+		} catch (GeneralSecurityException | IllegalArgumentException e) {
+			p("Exception " + e.getLocalizedMessage());
+			return new String[] { null };
+		}
 	}
 
 	/**
@@ -176,22 +699,14 @@ public class Server extends Thread {
 			throws JsonProcessingException {
 		switch (type) {
 		case GetOrders:
-			CircularFifoQueue<byte[]> q = queues.get(clientId);
-			String answer = "";
-            
-            if (q.size() == 0) {
-                return "no orders in queue";
-            }
-            for (int i = 0; i < q.size(); i++) {
-				byte[] encryptedOrder = q.get(i);
-				String decrypted = "";
-				decrypted = decryptOrder(encryptedOrder);
-				answer = answer + Message.createServerSendOrdersMessage(decrypted) + "\n";
-			}
-			return answer;
+			return getOrders(clientId, signedMessage);
+		case GetSessionChallenge:
+			return newSessionChallenge(clientId, signedMessage);
+		case OpenSession:
+			return Message.createServerResponseMessage(openSession(clientId, signedMessage));
 		case BuyStock:
 		case SellStock:
-            boolean encryptionResult = saveOrderEncrypted(signedMessage.getContent().getBytes(), clientId);
+            boolean encryptionResult = saveOrderEncrypted(signedMessage.getContentBytes(), clientId);
             if (encryptionResult) {
 				return Message.createServerResponseMessage(isCorrectMessage);
 			} else {
@@ -202,6 +717,150 @@ public class Server extends Thread {
 		}
 	}
 
+	/**
+	 * Answers a request for orders with one page of orders. A repeated request
+	 * is answered from the cache as long as the queue of the client did not
+	 * change.
+	 * 
+	 * @param clientId
+	 * @param request  GetOrders message with optional cursor, sequence number
+	 *                 of the last known order and page size
+	 * @return String : page of orders, one message per line
+	 * @throws JsonProcessingException
+	 */
+	private String getOrders(int clientId, SignedMessage request) throws JsonProcessingException {
+		try {
+			// the message was already decoded to find its type
+			Map<String, String> parameters = request.getMessage().getMessageParameters();
+			String cursor = parameters.get("cursor");
+			String since = parameters.get("since");
+			long sinceSequence = since == null ? 0 : Long.parseLong(since);
+			String size = parameters.get("pageSize");
+			int pageSize = size == null ? ordersPageSize : Integer.parseInt(size);
+			long afterSequence = afterSequence(cursor, sinceSequence);
+
+			if (blocks != null) {
+				// the open block of the client is read like all orders in front
+				blocks.flush(clientId);
+			}
+			// the version is read first, the page is at least as new
+			long version = queues.version(clientId);
+			if (version != OrderStore.NO_VERSION) {
+				String cached = ordersCache.get(clientId, version, afterSequence, pageSize);
+				if (cached != null) {
+					return cached;
+				}
+			}
+			StringBuilder page = new StringBuilder();
+			writeOrders(clientId, cursor, sinceSequence, pageSize, page);
+			String response = page.toString();
+			if (version != OrderStore.NO_VERSION) {
+				ordersCache.put(clientId, version, afterSequence, pageSize, response);
+			}
+			return response;
+		} catch (JsonProcessingException e) {
+			throw e;
+		} catch (IOException | IllegalArgumentException e) {
+			return "{\"Failure\"}";
+		}
+	}
+
+	/**
+	 * Writes one page of the orders of a client, one message per line. The page
+	 * is built in memory as a whole, it is bounded by maxOrdersPageSize and its
+	 * response is cached. Pages from the threshold on are decrypted in
+	 * parallel on the common pool and then written in the order of the queue.
+	 * If more orders follow, the page ends with a cursor message; sending the
+	 * cursor with the next request returns the next page.
+	 * 
+	 * Every order message carries the sequence number of the order. A client
+	 * that polls with the highest sequence number it has seen only gets the
+	 * orders stored since, and the store finds them without touching the older
+	 * ones.
+	 * 
+	 * The orders of a block share the sequence number of the block. A page
+	 * always ends behind a complete block, so it may hold up to a block less
+	 * one orders more than requested.
+	 * 
+	 * @param clientId
+	 * @param cursor        cursor of the previous page, null for the first page
+	 * @param sinceSequence orders up to this sequence number are skipped, 0 for
+	 *                      all orders
+	 * @param pageSize      number of orders, limited to maxOrdersPageSize
+	 * @param page          receives the page
+	 * @throws JsonProcessingException
+	 * @throws IllegalArgumentException if cursor or sequence number is invalid
+	 */
+	void writeOrders(int clientId, String cursor, long sinceSequence, int pageSize, StringBuilder page)
+			throws JsonProcessingException {
+		long afterSequence = afterSequence(cursor, sinceSequence);
+		int size = Math.max(1, Math.min(pageSize, maxOrdersPageSize));
+		int ordersPerRecord = blocks == null ? 1 : orderBlockSize;
+
+		int written = 0;
+		boolean more = false;
+		while (written < size) {
+			// one more record than needed shows if there is a next page, blocks
+			// that are not full may need another round
+			int needed = (size - written + ordersPerRecord - 1) / ordersPerRecord;
+			List<OrderStore.StoredOrder> records = queues.get(clientId, afterSequence, needed + 1);
+			if (records.isEmpty()) {
+				break;
+			}
+			int count = Math.min(records.size(), needed);
+			String[][] decrypted = new String[count][];
+			IntStream indices = IntStream.range(0, count);
+			if (parallelDecryption && count >= parallelDecryptionThreshold) {
+				indices = indices.parallel();
+			}
+			indices.forEach(i -> decrypted[i] = decryptOrders(records.get(i).encryptedOrder));
+			for (int i = 0; i < count; i++) {
+				for (String order : decrypted[i]) {
+					page.append(Message.createServerSendOrdersMessage(order, records.get(i).sequence)).append('\n');
+				}
+				written += decrypted[i].length;
+				afterSequence = records.get(i).sequence;
+			}
+			more = records.size() > needed;
+			if (!more) {
+				break;
+			}
+		}
+
+		if (written == 0) {
+			page.append("no orders in queue");
+		} else if (more) {
+			page.append(Message.createServerSendOrdersCursorMessage(encodeCursor(afterSequence))).append('\n');
+		}
+	}
+
+	/**
+	 * Sequence number after which a page of orders starts
+	 * 
+	 * @throws IllegalArgumentException if cursor or sequence number is invalid
+	 */
+	private static long afterSequence(String cursor, long sinceSequence) {
+		if (sinceSequence < 0) {
+			throw new IllegalArgumentException("invalid sequence number");
+		}
+		return Math.max(sinceSequence, cursor == null ? 0 : decodeCursor(cursor));
+	}
+
+	/**
+	 * Cursor for the orders behind a sequence number. Clients treat it as
+	 * opaque string.
+	 */
+	private static String encodeCursor(long sequence) {
+		return Long.toString(sequence, Character.MAX_RADIX);
+	}
+
+	private static long decodeCursor(String cursor) {
+		long sequence = Long.parseLong(cursor, Character.MAX_RADIX);
+		if (sequence < 0) {
+			throw new IllegalArgumentException("invalid cursor");
+		}
+		return sequence;
+	}
 	/**
 	 * Processes incoming orders. Values of messages are read out and validation
 	 * process gets started. Server sends back a response to client showing if
@@ -211,22 +870,36 @@ public class Server extends Thread {
 	 * @return String
 	 */
 	public String acceptMessage(String message) {
+		return acceptMessage(message.getBytes(StandardCharsets.UTF_8));
+	}
 
+	/**
+	 * Processes incoming orders in their UTF-8 wire format. The signature is
+	 * checked over the raw content bytes first; the inner message is only
+	 * decoded if the signature is valid, so forged messages cost nothing beyond
+	 * the signature check.
+	 * 
+	 * @param message: UTF-8 encoded message incoming from client
+	 * @return String
+	 */
+	public String acceptMessage(byte[] message) {
+
+		if (stopped) {
+			return new String("{\"Failure\"}");
+		}
 		boolean isCorrectMessage = false;
 		MessageType type = null;
 		int clientId = 0;
-		ObjectMapper mapper = new ObjectMapper();
 		try {
-			SignedMessage signedMessage = mapper.readValue(message, SignedMessage.class);
+			SignedMessage signedMessage = SignedMessage.parse(message);
 			clientId = signedMessage.getClientId();
 
-			byte[] signature = signedMessage.getSignature();
-
-			isCorrectMessage = checkSignature(clientId, signedMessage.getContent().getBytes(), signature);
-            p("message signature is " + (isCorrectMessage ? "valid" : "not valid"));
+			isCorrectMessage = authenticate(signedMessage);
+            p("message " + (signedMessage.getSignature() != null ? "signature" : "mac") + " is "
+                    + (isCorrectMessage ? "valid" : "not valid"));
 			if (isCorrectMessage == true) {
                 
-				Message theMessage = mapper.readValue(signedMessage.getContent(), Message.class);
+				Message theMessage = signedMessage.getMessage();
 				type = theMessage.getMessageType();
 
 				p(theMessage.getMessageType().toString());
@@ -236,12 +909,300 @@ public class Server extends Thread {
 			} else {
 				return Message.createServerResponseMessage(isCorrectMessage);
 			}
-		} catch (JsonProcessingException e) {
+		} catch (IOException e) {
 			p("Exception " + e.getLocalizedMessage());
 			return new String("{\"Failure\"}");
 		}
 	}
 
+	/**
+	 * Processes a batch of incoming orders. All messages are parsed and their
+	 * signatures are verified in bulk, the accepted orders are encrypted in one
+	 * pass and finally stored or answered in the order of the input. Logging
+	 * happens once per batch instead of once per message.
+	 * 
+	 * @param messages: incoming messages in the same format as for
+	 *                  {@link #acceptMessage(String)}
+	 * @return List : one response per message, in the same order as the input
+	 */
+	public List<String> acceptMessages(List<String> messages) {
+
+		int size = messages.size();
+		String[] responses = new String[size];
+		SignedMessage[] signedMessages = new SignedMessage[size];
+		Message[] theMessages = new Message[size];
+		byte[][] encryptedOrders = new byte[size][];
+
+		String failure = new String("{\"Failure\"}");
+		String accepted;
+		String rejected;
+		try {
+			accepted = Message.createServerResponseMessage(true);
+			rejected = Message.createServerResponseMessage(false);
+		} catch (JsonProcessingException e) {
+			p("Exception " + e.getLocalizedMessage());
+			return new ArrayList<String>(Collections.nCopies(size, failure));
+		}
+		if (stopped) {
+			return new ArrayList<String>(Collections.nCopies(size, failure));
+		}
+
+		// parse all envelopes
+		for (int i = 0; i < size; i++) {
+			try {
+				signedMessages[i] = SignedMessage.parse(messages.get(i).getBytes(StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				responses[i] = failure;
+			}
+		}
+
+		// verify all signatures, then decode messages with a valid signature only
+		boolean[] valid = verifySignatures(signedMessages);
+		int rejectedCount = 0;
+		for (int i = 0; i < size; i++) {
+			if (signedMessages[i] == null) {
+				continue;
+			}
+			if (!valid[i]) {
+				responses[i] = rejected;
+				rejectedCount++;
+				continue;
+			}
+			try {
+				theMessages[i] = signedMessages[i].getMessage();
+			} catch (IOException e) {
+				responses[i] = failure;
+			}
+		}
+
+		// encrypt all accepted orders in one pass, in block mode they are
+		// encrypted with their blocks
+		for (int i = 0; blocks == null && i < size; i++) {
+			if (theMessages[i] != null && isOrder(theMessages[i].getMessageType())) {
+				encryptedOrders[i] = encryptOrder(signedMessages[i].getContentBytes());
+			}
+		}
+
+		// store orders and answer requests in input order, such that a request
+		// for orders sees all orders in front of it
+		List<CompletableFuture<Boolean>> stored = new ArrayList<CompletableFuture<Boolean>>(
+				Collections.nCopies(size, (CompletableFuture<Boolean>) null));
+		for (int i = 0; i < size; i++) {
+			if (theMessages[i] == null) {
+				continue;
+			}
+			int clientId = signedMessages[i].getClientId();
+			try {
+				if (isOrder(theMessages[i].getMessageType())) {
+					stored.set(i, saveOrder(signedMessages[i].getContentBytes(), encryptedOrders[i], clientId));
+				} else {
+					responses[i] = parseMessage(theMessages[i].getMessageType(), clientId, true, signedMessages[i]);
+				}
+			} catch (JsonProcessingException e) {
+				responses[i] = failure;
+			}
+		}
+
+		// the open blocks of the batch are sealed now instead of after the
+		// maximum wait
+		for (int i = 0; blocks != null && i < size; i++) {
+			if (stored.get(i) != null) {
+				blocks.flush(signedMessages[i].getClientId());
+			}
+		}
+
+		// orders of the batch become durable together, accept them afterwards
+		int storedCount = 0;
+		for (int i = 0; i < size; i++) {
+			if (stored.get(i) == null) {
+				continue;
+			}
+			if (stored.get(i).join()) {
+				responses[i] = accepted;
+				storedCount++;
+			} else {
+				responses[i] = "{\"Failure during encryption\"}";
+			}
+		}
+
+		p("batch of " + size + " messages: " + storedCount + " orders stored, " + rejectedCount
+				+ " signatures not valid");
+		return Arrays.asList(responses);
+	}
+
+	/**
+	 * Checks the signatures of several parsed messages. Messages sent within a
+	 * session are checked by their MAC.
+	 * 
+	 * @param signedMessages: parsed messages, entries may be null
+	 * @return boolean[] : validation result per message
+	 */
+	private boolean[] verifySignatures(SignedMessage[] signedMessages) {
+		int[] clientIds = new int[signedMessages.length];
+		byte[][] contents = new byte[signedMessages.length][];
+		byte[][] signatures = new byte[signedMessages.length][];
+		for (int i = 0; i < signedMessages.length; i++) {
+			SignedMessage signedMessage = signedMessages[i];
+			if (signedMessage != null && signedMessage.getSignature() != null) {
+				clientIds[i] = signedMessage.getClientId();
+				contents[i] = signedMessage.getContentBytes();
+				signatures[i] = signedMessage.getSignature();
+			}
+		}
+		boolean[] valid = verifyInParallel(clientIds, contents, signatures);
+		for (int i = 0; i < signedMessages.length; i++) {
+			SignedMessage signedMessage = signedMessages[i];
+			if (signedMessage != null && signedMessage.getSignature() == null) {
+				valid[i] = checkMac(signedMessage.getClientId(), signedMessage.getContentBytes(),
+						signedMessage.getMac());
+			}
+		}
+		return valid;
+	}
+
+	/**
+	 * Verifies many (clientId, content, signature) tuples, in parallel from
+	 * the threshold on.
+	 * 
+	 * This is not batch verification: Tink does not offer combined Ed25519
+	 * batch verification, so every signature is checked on its own with the
+	 * cached verifier of its client and costs the same CPU time as before.
+	 * Only the wall-clock time of a large batch drops, because the checks are
+	 * spread over all cores of the common pool. Every signature gets its own
+	 * result, so the bad ones are named without a second pass.
+	 * 
+	 * @param clientIds
+	 * @param contents:   signed bytes, entries may be null
+	 * @param signatures
+	 * @return boolean[] : validation result per tuple
+	 */
+	public boolean[] verifyInParallel(int[] clientIds, byte[][] contents, byte[][] signatures) {
+		boolean[] valid = new boolean[clientIds.length];
+		IntStream indices = IntStream.range(0, clientIds.length);
+		if (parallelVerification && clientIds.length >= parallelVerificationThreshold) {
+			indices = indices.parallel();
+		}
+		indices.forEach(i -> valid[i] = contents[i] != null && checkSignature(clientIds[i], contents[i], signatures[i]));
+
+		// reported the same way whether the batch was verified in parallel or not
+		StringBuilder failed = new StringBuilder();
+		for (int i = 0; i < valid.length; i++) {
+			if (!valid[i] && contents[i] != null) {
+				failed.append(failed.length() == 0 ? "" : ", ").append(i);
+			}
+		}
+		if (failed.length() > 0) {
+			p("signature verification failed for messages " + failed);
+		}
+		return valid;
+	}
+
+	/**
+	 * Shows if a message type is a buy/sell order that has to be stored
+	 * 
+	 * @param type
+	 * @return boolean
+	 */
+	private static boolean isOrder(MessageType type) {
+		return type == MessageType.BuyStock || type == MessageType.SellStock;
+	}
+
+	/**
+	 * Hands a message to the ingest pipeline of the server. The envelope is
+	 * decoded on the calling thread, the client ID in it selects the lanes of
+	 * the message. If the pipeline is not running, the message is processed
+	 * directly like in {@link #acceptMessage(String)}.
+	 * 
+	 * @param message: incoming from interaction of client with server
+	 * @return CompletableFuture : response of server, completes exceptionally
+	 *         if the pipeline is stopped before the message is processed
+	 */
+	public CompletableFuture<String> submitMessage(String message) {
+		if (pipeline.isRunning()) {
+			try {
+				SignedMessage signedMessage = SignedMessage.parse(message.getBytes(StandardCharsets.UTF_8));
+				return pipeline.submit(signedMessage.getClientId(), signedMessage);
+			} catch (IOException e) {
+				return CompletableFuture.completedFuture("{\"Failure\"}");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return CompletableFuture.completedFuture(acceptMessage(message));
+	}
+
+	/**
+	 * Pipeline stage that checks signature or MAC of a message and decodes the
+	 * inner message
+	 * 
+	 * @param ingest
+	 * @return boolean : shows if message has to be forwarded
+	 */
+	private boolean verifyStage(IngestPipeline.Ingest ingest) {
+		try {
+			if (!authenticate(ingest.signedMessage)) {
+				ingest.response.complete(Message.createServerResponseMessage(false));
+				return false;
+			}
+			ingest.message = ingest.signedMessage.getMessage();
+			return true;
+		} catch (IOException e) {
+			ingest.response.complete("{\"Failure\"}");
+			return false;
+		}
+	}
+
+	/**
+	 * Pipeline stage that encrypts a buy/sell order, other requests pass. In
+	 * block mode orders pass as well, they are encrypted with their blocks.
+	 * 
+	 * @param ingest
+	 * @return boolean : shows if message has to be forwarded
+	 */
+	private boolean encryptStage(IngestPipeline.Ingest ingest) {
+		if (blocks != null || !isOrder(ingest.message.getMessageType())) {
+			return true;
+		}
+		ingest.encryptedOrder = encryptOrder(ingest.signedMessage.getContentBytes());
+		if (ingest.encryptedOrder == null) {
+			ingest.response.complete("{\"Failure during encryption\"}");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Pipeline stage that stores an encrypted order in queue of client. Other
+	 * requests are answered here, behind all earlier orders of their client, so
+	 * a client reads its own orders.
+	 * 
+	 * @param ingest
+	 * @return boolean : shows if message has to be forwarded
+	 */
+	private boolean storeStage(IngestPipeline.Ingest ingest) {
+		if (!isOrder(ingest.message.getMessageType())) {
+			try {
+				ingest.response.complete(parseMessage(ingest.message.getMessageType(),
+						ingest.signedMessage.getClientId(), true, ingest.signedMessage));
+			} catch (IOException e) {
+				ingest.response.complete("{\"Failure\"}");
+			}
+			return false;
+		}
+		// the response is sent once the order is durable, the stage continues
+		// with the next order meanwhile
+		saveOrder(ingest.signedMessage.getContentBytes(), ingest.encryptedOrder, ingest.signedMessage.getClientId())
+				.thenAccept(stored -> {
+					try {
+						ingest.response.complete(stored ? Message.createServerResponseMessage(true)
+								: "{\"Failure during encryption\"}");
+					} catch (JsonProcessingException e) {
+						ingest.response.complete("{\"Failure\"}");
+					}
+				});
+		return false;
+	}
+
 	/**
 	 * Auxiliary method for showing some responses/requests in the communication
 	 * between client and server
@@ -256,13 +1217,72 @@ public class Server extends Thread {
 	public void run() {
 
             p("Server started");
-            
+            pipeline.start();
+            maintenance.scheduleWithFixedDelay(() -> queues.releaseIdle(idleClientMillis), idleClientMillis,
+                    idleClientMillis, TimeUnit.MILLISECONDS);
+            if (ordersCacheTtlMillis > 0) {
+                maintenance.scheduleWithFixedDelay(ordersCache::expire, ordersCacheTtlMillis, ordersCacheTtlMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+            if (journal != null && snapshotIntervalMillis > 0) {
+                maintenance.scheduleWithFixedDelay(this::writeSnapshot, snapshotIntervalMillis,
+                        snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+            if (statsIntervalMillis > 0) {
+                maintenance.scheduleWithFixedDelay(this::reportStats, statsIntervalMillis, statsIntervalMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+		
+	}
+
+	/**
+	 * Stops the server: new messages and registrations are rejected, the
+	 * pipeline stops taking messages, the background tasks finish, open blocks
+	 * are sealed and stored, and the journal is closed with its pending records
+	 * flushed. Requests that were already running when the journal closed
+	 * answer with a failure.
+	 */
+	public void shutdown() {
+		stopped = true;
+		pipeline.stop();
+		maintenance.shutdown();
+		if (sealer != null) {
+			sealer.shutdown();
+		}
+		try {
+			maintenance.awaitTermination(SHUTDOWN_MILLIS, TimeUnit.MILLISECONDS);
+			if (sealer != null) {
+				sealer.awaitTermination(SHUTDOWN_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (blocks != null) {
+			// the orders of open blocks are still waiting for their answer
+			blocks.close();
+		}
+		if (journal != null) {
 			try {
-				Thread.sleep((long) (Math.random() * sendFrequency + 1));
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+				journal.close();
+			} catch (IOException e) {
+				p("Exception " + e.getLocalizedMessage());
 			}
-		
+		}
+		p("Server stopped");
+	}
+
+	/**
+	 * Prints the statistics of pipeline, caches and order store, the rates are
+	 * the ones since the previous report
+	 */
+	private void reportStats() {
+		p("pipeline " + pipeline.report());
+		p("verifier cache " + verifiers.stats());
+		p("orders cache " + ordersCache.stats());
+		if (blocks != null) {
+			p("order blocks " + blocks.stats());
+		}
+		p("order store " + queues.stats());
 	}
 
 }
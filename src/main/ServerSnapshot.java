@@ -0,0 +1,234 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import main.OrderStore.StoredOrder;
+
+/**
+ * Snapshot of the client registry and the orders in memory.
+ *
+ * A snapshot is written while the server keeps accepting messages. It stores
+ * the last journal sequence number at its start: every registration and order
+ * up to that number is contained in the snapshot, so the journal only has to
+ * be replayed behind it. Orders that arrived while the snapshot was written
+ * may be contained as well; they are recognized by their sequence numbers and
+ * not replayed twice.
+ *
+ * File layout: magic number, journal sequence number, registered clients
+ * (client ID, serialized public key) ended by -1, client queues (client ID,
+ * number of orders, orders as sequence number, length and encrypted order)
+ * ended by -1, CRC32 of everything before. A snapshot is written to a
+ * temporary file, forced to disk and then renamed, and the rename is forced
+ * with its directory, so the latest snapshot is always complete.
+ *
+ * The last two snapshots are kept. If the latest one is damaged the older one
+ * is loaded, so the journal has to be kept behind the older one, see
+ * {@link #write(Path, long, ClientRegistry, OrderStore)}.
+ */
+final class ServerSnapshot {
+
+	private static final int MAGIC = 0x534E4150;
+	private static final String PREFIX = "snapshot-";
+	private static final String SUFFIX = ".bin";
+	// number of snapshots kept, an older one is used if the latest is damaged
+	private static final int KEPT_SNAPSHOTS = 2;
+
+	private ServerSnapshot() {
+	}
+
+	/**
+	 * Writes a snapshot and deletes snapshots that are no longer needed
+	 *
+	 * @param directory
+	 * @param journalSequence: last journal sequence number before the snapshot
+	 *                         started
+	 * @param clients
+	 * @param queues
+	 * @return long : journal sequence number of the oldest kept snapshot, the
+	 *         journal records up to it may be deleted, 0 while there is no
+	 *         older snapshot
+	 * @throws IOException
+	 */
+	static long write(Path directory, long journalSequence, ClientRegistry clients, OrderStore queues)
+			throws IOException {
+		Path file = directory.resolve(String.format("%s%020d%s", PREFIX, journalSequence, SUFFIX));
+		Path temporary = directory.resolve(file.getFileName() + ".tmp");
+
+		try (FileOutputStream stream = new FileOutputStream(temporary.toFile())) {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(stream), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(MAGIC);
+			out.writeLong(journalSequence);
+			try {
+				clients.forEach((publicKey, clientId) -> {
+					try {
+						out.writeInt(clientId);
+						out.write(publicKey.toBytes());
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+				out.writeInt(-1);
+				queues.forEachQueue((orders, clientId) -> {
+					try {
+						out.writeInt(clientId);
+						out.writeInt(orders.size());
+						for (StoredOrder order : orders) {
+							out.writeLong(order.sequence);
+							out.writeInt(order.encryptedOrder.length);
+							out.write(order.encryptedOrder);
+						}
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			out.writeInt(-1);
+			out.flush();
+			out.writeLong(checked.getChecksum().getValue());
+			out.flush();
+			stream.getChannel().force(true);
+		}
+		// orders that were moved to disk are no longer in the journal segments
+		// that the snapshot allows to delete
+		queues.force();
+		Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		forceDirectory(directory);
+
+		List<Path> snapshots = snapshots(directory);
+		int oldestKept = Math.max(0, snapshots.size() - KEPT_SNAPSHOTS);
+		for (int i = 0; i < oldestKept; i++) {
+			Files.deleteIfExists(snapshots.get(i));
+		}
+		// without an older snapshot the fallback is the whole journal
+		return snapshots.size() < KEPT_SNAPSHOTS ? 0 : journalSequence(snapshots.get(oldestKept));
+	}
+
+	/**
+	 * Loads the latest complete snapshot into an empty registry and order store
+	 *
+	 * @param directory
+	 * @param clients
+	 * @param queues
+	 * @param lastSequences: receives the sequence number of the newest order of
+	 *                       every client in the snapshot
+	 * @return long : journal sequence number of the snapshot, 0 if there is none
+	 * @throws IOException
+	 */
+	static long load(Path directory, ClientRegistry clients, OrderStore queues, Map<Integer, Long> lastSequences)
+			throws IOException {
+		List<Path> snapshots = snapshots(directory);
+		for (int i = snapshots.size() - 1; i >= 0; i--) {
+			Path file = snapshots.get(i);
+			// the checksum is verified before anything is restored
+			if (!isComplete(file)) {
+				continue;
+			}
+			try (DataInputStream in = open(file)) {
+				in.readInt();
+				long journalSequence = in.readLong();
+				for (int clientId = in.readInt(); clientId != -1; clientId = in.readInt()) {
+					byte[] publicKey = new byte[ClientRegistry.RECORD_LENGTH];
+					in.readFully(publicKey);
+					clients.restore(clientId, ClientRegistry.PublicKey.fromBytes(publicKey));
+				}
+				for (int clientId = in.readInt(); clientId != -1; clientId = in.readInt()) {
+					int count = in.readInt();
+					for (int j = 0; j < count; j++) {
+						long sequence = in.readLong();
+						byte[] encryptedOrder = new byte[in.readInt()];
+						in.readFully(encryptedOrder);
+						queues.add(clientId, encryptedOrder, (c, o) -> sequence);
+						lastSequences.put(clientId, sequence);
+					}
+				}
+				return journalSequence;
+			}
+		}
+		return 0;
+	}
+
+	private static boolean isComplete(Path file) throws IOException {
+		try (CheckedInputStream checked = new CheckedInputStream(
+				new BufferedInputStream(Files.newInputStream(file)), new CRC32())) {
+			DataInputStream in = new DataInputStream(checked);
+			long size = Files.size(file);
+			if (size < Integer.BYTES + Long.BYTES + Long.BYTES || in.readInt() != MAGIC) {
+				return false;
+			}
+			skipFully(checked, size - Integer.BYTES - Long.BYTES);
+			long expected = checked.getChecksum().getValue();
+			return new DataInputStream(checked).readLong() == expected;
+		} catch (EOFException e) {
+			return false;
+		}
+	}
+
+	private static void skipFully(InputStream in, long bytes) throws IOException {
+		byte[] buffer = new byte[8192];
+		while (bytes > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, bytes));
+			if (read < 0) {
+				throw new EOFException();
+			}
+			bytes -= read;
+		}
+	}
+
+	/**
+	 * Forces the entries of a directory to disk, e.g. after a rename
+	 */
+	private static void forceDirectory(Path directory) throws IOException {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Journal sequence number of a snapshot from its file name
+	 */
+	private static long journalSequence(Path snapshot) {
+		String name = snapshot.getFileName().toString();
+		return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+	}
+
+	private static DataInputStream open(Path file) throws IOException {
+		return new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+	}
+
+	private static List<Path> snapshots(Path directory) throws IOException {
+		List<Path> snapshots = new ArrayList<Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+			for (Path file : files) {
+				snapshots.add(file);
+			}
+		}
+		// names contain the zero-padded journal sequence number
+		Collections.sort(snapshots);
+		return snapshots;
+	}
+
+}
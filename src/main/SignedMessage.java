@@ -1,14 +1,32 @@
 package main;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.annotation.JsonRawValue;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonToken;
 /**
- * Realizes the format of a message which should contain the order of the client as well as a 
+ * Realizes the format of a message which should contain the order of the client as well as a
  * corresponding signature.
+ *
+ * The signed order is embedded as raw JSON object in the "content" field. This
+ * way the server can verify the signature directly over the content bytes as
+ * they appear on the wire and only decodes the inner message afterwards.
+ *
+ * Within a session the content is authenticated with a MAC of the session key
+ * instead of a signature. Exactly one of both fields is set.
  */
 @JsonAutoDetect(fieldVisibility = Visibility.ANY)
+@JsonInclude(Include.NON_NULL)
 public class SignedMessage {
 
 	private int clientId;
@@ -21,14 +39,54 @@ public class SignedMessage {
 		this.clientId = clientId;
 	}
 
+	@JsonRawValue
 	private String content;
 
+	// raw UTF-8 bytes of the content of a received message
+	@JsonIgnore
+	private byte[] contentBytes;
+
+	// inner message, decoded on first access
+	@JsonIgnore
+	private Message message;
+
 	public String getContent() {
+		if (content == null && contentBytes != null) {
+			content = new String(contentBytes, StandardCharsets.UTF_8);
+		}
 		return content;
 	}
 
 	public void setContent(String content) {
 		this.content = content;
+		this.contentBytes = null;
+		this.message = null;
+	}
+
+	/**
+	 * Getter for the signed bytes of the content
+	 *
+	 * @return byte[] : UTF-8 encoded content
+	 */
+	public byte[] getContentBytes() {
+		if (contentBytes == null && content != null) {
+			contentBytes = content.getBytes(StandardCharsets.UTF_8);
+		}
+		return contentBytes;
+	}
+
+	/**
+	 * Decodes the inner message from the content bytes. Decoding happens only
+	 * once, on the first call of this method.
+	 *
+	 * @return Message
+	 * @throws IOException if content is no valid message
+	 */
+	public Message getMessage() throws IOException {
+		if (message == null) {
+			message = Json.MESSAGE_READER.readValue(getContentBytes());
+		}
+		return message;
 	}
 
 	public byte[] getSignature() {
@@ -41,10 +99,21 @@ public class SignedMessage {
 
 	private byte[] signature;
 
-	private SignedMessage(int clientId, String content, byte[] signature) {
+	public byte[] getMac() {
+		return mac;
+	}
+
+	public void setMac(byte[] mac) {
+		this.mac = mac;
+	}
+
+	private byte[] mac;
+
+	private SignedMessage(int clientId, String content, byte[] signature, byte[] mac) {
 		setClientId(clientId);
 		this.content = content;
 		this.signature = signature;
+		this.mac = mac;
 	}
 
 	public SignedMessage() {
@@ -53,9 +122,62 @@ public class SignedMessage {
 
 	public static String createSignedMessage(int clientId, String message, byte[] signature)
 			throws JsonProcessingException {
-		ObjectMapper mapper = new ObjectMapper();
+		return Json.SIGNED_MESSAGE_WRITER.writeValueAsString(new SignedMessage(clientId, message, signature, null));
+	}
+
+	public static String createMacMessage(int clientId, String message, byte[] mac) throws JsonProcessingException {
+		return Json.SIGNED_MESSAGE_WRITER.writeValueAsString(new SignedMessage(clientId, message, null, mac));
+	}
 
-		return mapper.writeValueAsString(new SignedMessage(clientId, message, signature));
+	/**
+	 * Parses a received signed message in a single pass. The content object is
+	 * not decoded but its bytes are sliced out of the given input, so the
+	 * signature can be checked before any further work is done.
+	 *
+	 * @param wire UTF-8 encoded signed message
+	 * @return SignedMessage
+	 * @throws IOException if input is no valid signed message
+	 */
+	public static SignedMessage parse(byte[] wire) throws IOException {
+		SignedMessage signedMessage = new SignedMessage();
+
+		try (JsonParser parser = Json.FACTORY.createParser(wire)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException(parser, "signed message is no JSON object");
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+
+				switch (field) {
+				case "clientId":
+					signedMessage.clientId = parser.getIntValue();
+					break;
+				case "content":
+					if (value != JsonToken.START_OBJECT) {
+						throw new JsonParseException(parser, "content is no JSON object");
+					}
+					int start = (int) parser.getTokenLocation().getByteOffset();
+					parser.skipChildren();
+					int end = (int) parser.getTokenLocation().getByteOffset() + 1;
+					signedMessage.contentBytes = Arrays.copyOfRange(wire, start, end);
+					break;
+				case "signature":
+					signedMessage.signature = value == JsonToken.VALUE_NULL ? null : parser.getBinaryValue();
+					break;
+				case "mac":
+					signedMessage.mac = value == JsonToken.VALUE_NULL ? null : parser.getBinaryValue();
+					break;
+				default:
+					parser.skipChildren();
+				}
+			}
+		}
+
+		if (signedMessage.contentBytes == null) {
+			throw new IOException("signed message has no content");
+		}
+		return signedMessage;
 	}
 
 }
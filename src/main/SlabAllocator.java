@@ -0,0 +1,190 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocator of off-heap memory regions.
+ *
+ * Regions have power-of-two sizes between a minimum and a maximum size class.
+ * They are carved out of large direct buffers (arenas) with the buddy scheme:
+ * a free block of a larger class is split in halves until it fits, and a
+ * released region is merged with its free buddy again, up to a whole arena.
+ * Memory is reused instead of allocated again, and a region of one class can
+ * later serve any other class. An arena that is completely free again is
+ * dropped, unless it is the last one, and its memory is returned once the
+ * garbage collector frees the buffer. The Java heap only holds one small
+ * buffer object per region, independent of the data stored in it.
+ *
+ * Allocation and release are synchronized. They happen when a queue grows or
+ * is moved, not per order.
+ */
+class SlabAllocator {
+
+	private final int minRegionBits;
+	private final int maxRegionBits;
+	// size class of a whole arena
+	private final int arenaBits;
+	private final int arenaBytes;
+
+	// free blocks per size class, from the minimum class up to the arena class.
+	// A block is identified by its arena and its offset in the arena, see
+	// block(int, int). Guarded by this
+	private final List<TreeSet<Long>> freeBlocks;
+	// arenas by their ID, guarded by this
+	private final Map<Integer, ByteBuffer> arenas = new HashMap<Integer, ByteBuffer>();
+	private int nextArenaId;
+	// block of every allocated region, guarded by this
+	private final Map<ByteBuffer, Long> allocated = new IdentityHashMap<ByteBuffer, Long>();
+
+	private final AtomicLong reservedBytes = new AtomicLong();
+	private final AtomicLong usedBytes = new AtomicLong();
+
+	/**
+	 * Constructor of allocator
+	 *
+	 * @param minRegionBytes: smallest region size, rounded up to a power of two
+	 * @param maxRegionBytes: largest region size, rounded up to a power of two
+	 * @param arenaBytes:     size of the direct buffers regions are carved from,
+	 *                        rounded up to a power of two
+	 */
+	SlabAllocator(int minRegionBytes, int maxRegionBytes, int arenaBytes) {
+		this.minRegionBits = bits(minRegionBytes);
+		this.maxRegionBits = Math.max(minRegionBits, bits(maxRegionBytes));
+		this.arenaBits = Math.max(maxRegionBits, bits(arenaBytes));
+		this.arenaBytes = 1 << arenaBits;
+		this.freeBlocks = new ArrayList<TreeSet<Long>>(arenaBits - minRegionBits + 1);
+		for (int bits = minRegionBits; bits <= arenaBits; bits++) {
+			freeBlocks.add(new TreeSet<Long>());
+		}
+	}
+
+	/**
+	 * Allocates a region of at least the given size
+	 *
+	 * @param bytes
+	 * @return ByteBuffer : off-heap region, null if size exceeds the largest
+	 *         size class
+	 */
+	synchronized ByteBuffer allocate(int bytes) {
+		int bits = Math.max(minRegionBits, bits(bytes));
+		if (bits > maxRegionBits) {
+			return null;
+		}
+		int blockBits = bits;
+		while (blockBits <= arenaBits && free(blockBits).isEmpty()) {
+			blockBits++;
+		}
+		if (blockBits > arenaBits) {
+			int arenaId = nextArenaId++;
+			arenas.put(arenaId, ByteBuffer.allocateDirect(arenaBytes));
+			reservedBytes.addAndGet(arenaBytes);
+			blockBits = arenaBits;
+			free(blockBits).add(block(arenaId, 0));
+		}
+		// the lowest block is split, so allocations stay at the start of arenas
+		long block = free(blockBits).pollFirst();
+		while (blockBits > bits) {
+			blockBits--;
+			free(blockBits).add(block + (1 << blockBits));
+		}
+		ByteBuffer region = arenas.get(arenaId(block)).duplicate();
+		region.position(offset(block));
+		region.limit(offset(block) + (1 << bits));
+		region = region.slice();
+		allocated.put(region, block);
+		usedBytes.addAndGet(region.capacity());
+		return region;
+	}
+
+	/**
+	 * Returns a region to the allocator and merges it with its free buddies
+	 *
+	 * @param region: region that was allocated by this allocator
+	 * @throws IllegalArgumentException if the region was not allocated by this
+	 *                                  allocator or was already released
+	 */
+	synchronized void release(ByteBuffer region) {
+		Long allocatedBlock = allocated.remove(region);
+		if (allocatedBlock == null) {
+			throw new IllegalArgumentException("region was not allocated by this allocator");
+		}
+		usedBytes.addAndGet(-region.capacity());
+		long block = allocatedBlock;
+		int bits = bits(region.capacity());
+		while (bits < arenaBits && free(bits).remove(block ^ (1 << bits))) {
+			block &= ~(1L << bits);
+			bits++;
+		}
+		if (bits == arenaBits && arenas.size() > 1) {
+			arenas.remove(arenaId(block));
+			reservedBytes.addAndGet(-arenaBytes);
+		} else {
+			free(bits).add(block);
+		}
+	}
+
+	/**
+	 * Size of the largest region that can be allocated
+	 *
+	 * @return int
+	 */
+	int maxRegionBytes() {
+		return 1 << maxRegionBits;
+	}
+
+	/**
+	 * Size of the smallest region that can hold the given number of bytes
+	 *
+	 * @param bytes
+	 * @return int
+	 */
+	int regionBytesFor(int bytes) {
+		return 1 << Math.max(minRegionBits, bits(bytes));
+	}
+
+	/**
+	 * Off-heap memory reserved in arenas
+	 *
+	 * @return long
+	 */
+	long reservedBytes() {
+		return reservedBytes.get();
+	}
+
+	/**
+	 * Off-heap memory in allocated regions
+	 *
+	 * @return long
+	 */
+	long usedBytes() {
+		return usedBytes.get();
+	}
+
+	private TreeSet<Long> free(int bits) {
+		return freeBlocks.get(bits - minRegionBits);
+	}
+
+	private static long block(int arenaId, int offset) {
+		return ((long) arenaId << 32) | offset;
+	}
+
+	private static int arenaId(long block) {
+		return (int) (block >>> 32);
+	}
+
+	private static int offset(long block) {
+		return (int) block;
+	}
+
+	private static int bits(int bytes) {
+		return bytes <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(bytes - 1);
+	}
+
+}
@@ -0,0 +1,207 @@
+package main;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+import com.google.crypto.tink.PublicKeyVerify;
+
+/**
+ * Bounded cache of the verifier primitives of clients.
+ *
+ * Only a limited number of verifiers is kept in memory. On a miss the verifier
+ * is rebuilt with the given loader, e.g. from the public key stored in the
+ * {@link ClientRegistry}. Eviction is frequency-aware: the access frequency of
+ * every client is estimated with a small count-min sketch whose counters are
+ * halved periodically, so the estimate follows recent activity. A new verifier
+ * only replaces a resident one if its client is used more often than the
+ * least frequently used client of a random sample of residents. This way hot
+ * clients stay cached even when many idle clients send single messages.
+ *
+ * Hits are lock-free; only misses that change the cache content take the
+ * cache lock.
+ */
+class VerifierCache {
+
+	// number of resident entries compared when looking for an eviction victim
+	private static final int SAMPLE_SIZE = 8;
+	// number of sketch rows, i.e. hash functions
+	private static final int SKETCH_DEPTH = 4;
+	// counters saturate at this value
+	private static final int MAX_FREQUENCY = 15;
+	// seeds of the hash functions of the sketch rows
+	private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+	private final int maximumSize;
+	private final IntFunction<PublicKeyVerify> loader;
+	private final ConcurrentHashMap<Integer, PublicKeyVerify> entries;
+
+	// client IDs of the resident entries, used for sampling eviction victims.
+	// Guarded by the cache lock
+	private final int[] residents;
+	private int residentCount;
+
+	// count-min sketch of the access frequencies
+	private final byte[][] sketch;
+	private final int sketchMask;
+	private final int resetInterval;
+	private final AtomicInteger accesses = new AtomicInteger();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Constructor of cache
+	 *
+	 * @param maximumSize: maximum number of cached verifiers
+	 * @param loader:      builds the verifier of a client on a miss, returns
+	 *                     null for unknown clients
+	 */
+	VerifierCache(int maximumSize, IntFunction<PublicKeyVerify> loader) {
+		this.maximumSize = Math.max(1, maximumSize);
+		this.loader = loader;
+		this.entries = new ConcurrentHashMap<Integer, PublicKeyVerify>();
+		this.residents = new int[this.maximumSize];
+
+		int width = Integer.highestOneBit(Math.max(16, this.maximumSize * 2 - 1)) << 1;
+		this.sketch = new byte[SKETCH_DEPTH][width];
+		this.sketchMask = width - 1;
+		this.resetInterval = this.maximumSize * 10;
+	}
+
+	/**
+	 * Returns the verifier of a client, building and possibly caching it on a
+	 * miss
+	 *
+	 * @param clientId
+	 * @return PublicKeyVerify : null if the loader does not know the client
+	 */
+	PublicKeyVerify get(int clientId) {
+		recordAccess(clientId);
+
+		PublicKeyVerify verifier = entries.get(clientId);
+		if (verifier != null) {
+			hits.increment();
+			return verifier;
+		}
+
+		misses.increment();
+		verifier = loader.apply(clientId);
+		if (verifier != null) {
+			admit(clientId, verifier);
+		}
+		return verifier;
+	}
+
+	long hitCount() {
+		return hits.sum();
+	}
+
+	long missCount() {
+		return misses.sum();
+	}
+
+	long evictionCount() {
+		return evictions.sum();
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Counters of the cache in one line, for sizing the cache
+	 *
+	 * @return String
+	 */
+	String stats() {
+		long hitCount = hitCount();
+		long requests = hitCount + missCount();
+		return "size " + size() + "/" + maximumSize + ", hits " + hitCount + ", misses " + missCount()
+				+ ", evictions " + evictionCount() + ", hit rate "
+				+ String.format("%.3f", requests == 0 ? 0.0 : (double) hitCount / requests);
+	}
+
+	private synchronized void admit(int clientId, PublicKeyVerify verifier) {
+		if (entries.containsKey(clientId)) {
+			return;
+		}
+		if (residentCount < maximumSize) {
+			residents[residentCount] = clientId;
+			entries.put(clientId, verifier);
+			residentCount++;
+			return;
+		}
+
+		// frequency-aware admission: replace the least frequently used client of
+		// a sample, but only if the new client is used more often
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int victimSlot = random.nextInt(residentCount);
+		int victimFrequency = frequency(residents[victimSlot]);
+		for (int i = 1; i < SAMPLE_SIZE; i++) {
+			int slot = random.nextInt(residentCount);
+			int f = frequency(residents[slot]);
+			if (f < victimFrequency) {
+				victimSlot = slot;
+				victimFrequency = f;
+			}
+		}
+		if (frequency(clientId) <= victimFrequency) {
+			return;
+		}
+
+		entries.remove(residents[victimSlot]);
+		evictions.increment();
+		residents[victimSlot] = clientId;
+		entries.put(clientId, verifier);
+	}
+
+	private void recordAccess(int clientId) {
+		for (int row = 0; row < SKETCH_DEPTH; row++) {
+			int index = index(clientId, row);
+			// counters are updated without synchronization, lost updates only
+			// make the estimate slightly lower
+			if (sketch[row][index] < MAX_FREQUENCY) {
+				sketch[row][index]++;
+			}
+		}
+		if (accesses.incrementAndGet() >= resetInterval) {
+			age();
+		}
+	}
+
+	private int frequency(int clientId) {
+		int frequency = MAX_FREQUENCY;
+		for (int row = 0; row < SKETCH_DEPTH; row++) {
+			frequency = Math.min(frequency, sketch[row][index(clientId, row)]);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Halves all counters, so old accesses lose weight against recent ones
+	 */
+	private synchronized void age() {
+		if (accesses.get() < resetInterval) {
+			return;
+		}
+		for (byte[] row : sketch) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] = (byte) (row[i] >> 1);
+			}
+		}
+		accesses.set(0);
+	}
+
+	private int index(int clientId, int row) {
+		int h = clientId * SEEDS[row];
+		h ^= h >>> 16;
+		h *= 0x7FEB352D;
+		h ^= h >>> 15;
+		return h & sketchMask;
+	}
+
+}
@@ -0,0 +1,79 @@
+package main;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Sealing of order blocks and the answers to their orders
+ */
+class OrderBlocksTest {
+
+	@Test
+	void ordersAreAnsweredWhenTheirBlockIsStored() {
+		List<byte[]> stored = new ArrayList<byte[]>();
+		OrderBlocks blocks = new OrderBlocks(3, 1024, (clientId, block) -> {
+			stored.add(block);
+			return CompletableFuture.completedFuture(true);
+		});
+
+		CompletableFuture<Boolean> first = blocks.add(1, "a".getBytes());
+		CompletableFuture<Boolean> second = blocks.add(1, "b".getBytes());
+		assertFalse(first.isDone());
+		CompletableFuture<Boolean> third = blocks.add(1, "c".getBytes());
+		assertTrue(first.join() && second.join() && third.join());
+		assertEquals(1, stored.size());
+		assertEquals(3, OrderBlocks.count(stored.get(0)));
+		assertArrayEquals("b".getBytes(), OrderBlocks.order(stored.get(0), 1));
+
+		CompletableFuture<Boolean> open = blocks.add(1, "d".getBytes());
+		assertFalse(open.isDone());
+		assertEquals(1, blocks.flushOlderThan(0));
+		assertTrue(open.join());
+		assertEquals(2, stored.size());
+	}
+
+	@Test
+	void ordersOfAFailedBlockAreAnsweredWithAFailure() {
+		OrderBlocks blocks = new OrderBlocks(2, 1024,
+				(clientId, block) -> CompletableFuture.completedFuture(clientId != 2));
+
+		CompletableFuture<Boolean> failed = blocks.add(2, "a".getBytes());
+		CompletableFuture<Boolean> stored = blocks.add(1, "b".getBytes());
+		blocks.flush(2);
+		blocks.flush(1);
+
+		assertFalse(failed.join());
+		assertTrue(stored.join());
+		assertTrue(blocks.stats().endsWith("1 failed"));
+	}
+
+	@Test
+	void closeSealsOpenAndLaterBlocks() {
+		OrderBlocks blocks = new OrderBlocks(8, 1024, (clientId, block) -> CompletableFuture.completedFuture(true));
+
+		CompletableFuture<Boolean> open = blocks.add(1, "a".getBytes());
+		blocks.close();
+		assertTrue(open.join());
+		assertTrue(blocks.add(1, "b".getBytes()).join());
+	}
+
+	@Test
+	void storeErrorIsAnsweredWithAFailure() {
+		OrderBlocks blocks = new OrderBlocks(1, 1024, (clientId, block) -> {
+			CompletableFuture<Boolean> error = new CompletableFuture<Boolean>();
+			error.completeExceptionally(new IllegalStateException("journal closed"));
+			return error;
+		});
+
+		assertFalse(blocks.add(1, "a".getBytes()).join());
+	}
+
+}
@@ -0,0 +1,143 @@
+package main;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import main.Message.MessageType;
+
+/**
+ * Paging through the orders of a client whose oldest orders were moved from
+ * memory to the cold tier on disk
+ */
+class OrderPagingTest {
+
+	@TempDir
+	Path directory;
+
+	@BeforeAll
+	static void generateMasterKey() {
+		Server.masterKey = Server.generateKey();
+	}
+
+	@BeforeEach
+	void configureColdTier() {
+		Server.spillDirectory = directory.resolve("cold");
+		Server.orderQueueCapacity = 10;
+		Server.statsIntervalMillis = 0;
+	}
+
+	@AfterEach
+	void resetConfiguration() {
+		Server.spillDirectory = null;
+		Server.orderQueueCapacity = 100;
+		Server.statsIntervalMillis = 10_000;
+	}
+
+	@Test
+	void sincePagesCoverHotAndColdOrders() throws Exception {
+		OrderStore store = new OrderStore(10, new SlabAllocator(256, 64 * 1024, 1 << 20),
+				new ColdOrderStore(directory.resolve("store"), false));
+		AtomicLong sequences = new AtomicLong();
+		for (int i = 0; i < 95; i++) {
+			store.add(1, new byte[] { (byte) i }, (clientId, order) -> sequences.incrementAndGet());
+		}
+
+		List<Long> sequencesRead = new ArrayList<Long>();
+		long afterSequence = 0;
+		List<OrderStore.StoredOrder> page;
+		while (!(page = store.get(1, afterSequence, 7)).isEmpty()) {
+			assertTrue(page.size() <= 7);
+			for (OrderStore.StoredOrder order : page) {
+				assertEquals((byte) (order.sequence - 1), order.encryptedOrder[0]);
+				sequencesRead.add(order.sequence);
+				afterSequence = order.sequence;
+			}
+		}
+		assertEquals(95, sequencesRead.size());
+		for (int i = 0; i < sequencesRead.size(); i++) {
+			assertEquals(i + 1, (long) sequencesRead.get(i));
+		}
+
+		// a page that starts in the cold tier and ends in memory
+		page = store.get(1, 80, 10);
+		assertEquals(81, page.get(0).sequence);
+		assertEquals(90, page.get(9).sequence);
+	}
+
+	@Test
+	void ordersStayInMemoryIfSpillingFails() throws Exception {
+		Path cold = directory.resolve("store");
+		OrderStore store = new OrderStore(10, new SlabAllocator(256, 64 * 1024, 1 << 20),
+				new ColdOrderStore(cold, false));
+		AtomicLong sequences = new AtomicLong();
+		for (int i = 0; i < 10; i++) {
+			store.add(1, new byte[] { (byte) i }, (clientId, order) -> sequences.incrementAndGet());
+		}
+		Files.delete(cold);
+
+		assertEquals(OrderStore.NOT_STORED,
+				store.add(1, new byte[] { 10 }, (clientId, order) -> sequences.incrementAndGet()));
+		// no sequence number was taken for the rejected order
+		assertEquals(10, sequences.get());
+		assertEquals(10, store.get(1, 0, 100).size());
+	}
+
+	@Test
+	void strayFilesInColdDirectoryAreIgnored() throws Exception {
+		Path cold = Files.createDirectories(directory.resolve("store"));
+		Path stray = Files.createFile(cold.resolve("client-backup.cold"));
+
+		new ColdOrderStore(cold, true);
+		new ColdOrderStore(cold, false);
+		assertTrue(Files.exists(stray));
+	}
+
+	@Test
+	void cursorPagesCoverHotAndColdOrders() throws Exception {
+		Server server = new Server();
+		try {
+			TestClient client = new TestClient(server);
+			List<String> expected = new ArrayList<String>();
+			for (int i = 0; i < 45; i++) {
+				expected.add(client.buy(server, "DE000000" + String.format("%04d", i)));
+			}
+
+			List<String> orders = new ArrayList<String>();
+			String cursor = null;
+			int pages = 0;
+			do {
+				StringBuilder page = new StringBuilder();
+				server.writeOrders(client.id, cursor, 0, 8, page);
+				pages++;
+				cursor = null;
+				for (Message message : TestClient.messages(page.toString())) {
+					if (message.getMessageType() == MessageType.ServerSendOrders) {
+						orders.add(message.getMessageParameters().get("order"));
+					} else if (message.getMessageType() == MessageType.ServerSendOrdersCursor) {
+						cursor = message.getMessageParameters().get("cursor");
+					}
+				}
+			} while (cursor != null);
+
+			assertEquals(expected, orders);
+			assertEquals(6, pages);
+			// the client polls with the last sequence number it has seen
+			assertEquals(expected, client.orders(server, 0, 8));
+		} finally {
+			server.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+package main;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Invalidation of cached GetOrders responses
+ */
+class OrdersPageCacheTest {
+
+	@BeforeAll
+	static void generateMasterKey() {
+		Server.masterKey = Server.generateKey();
+	}
+
+	@BeforeEach
+	void disableStats() {
+		Server.statsIntervalMillis = 0;
+	}
+
+	@AfterEach
+	void resetConfiguration() {
+		Server.statsIntervalMillis = 10_000;
+	}
+
+	@Test
+	void responseIsOnlyReturnedForSameRequestAndVersion() {
+		OrdersPageCache cache = new OrdersPageCache(1 << 20, 60_000);
+		cache.put(1, 5, 0, 100, "page");
+
+		assertSame("page", cache.get(1, 5, 0, 100));
+		assertNull(cache.get(1, 6, 0, 100));
+		assertNull(cache.get(1, 5, 3, 100));
+		assertNull(cache.get(1, 5, 0, 50));
+		assertNull(cache.get(2, 5, 0, 100));
+
+		// the next response of the client replaces the previous one
+		cache.put(1, 6, 0, 100, "next page");
+		assertNull(cache.get(1, 5, 0, 100));
+		assertEquals("next page", cache.get(1, 6, 0, 100));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	void expiredResponsesAreNotReturned() throws InterruptedException {
+		OrdersPageCache cache = new OrdersPageCache(1 << 20, 1);
+		cache.put(1, 5, 0, 100, "page");
+		Thread.sleep(5);
+
+		assertNull(cache.get(1, 5, 0, 100));
+		assertEquals(1, cache.expire());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	void evictionKeepsCacheWithinItsSize() {
+		OrdersPageCache cache = new OrdersPageCache(64 * 1024, 60_000);
+		String page = new String(new char[2000]);
+		for (int clientId = 0; clientId < 100; clientId++) {
+			cache.put(clientId, 1, 0, 100, page);
+		}
+
+		assertEquals(100, cache.size() + cache.evictionCount());
+		assertEquals((64 * 1024) / (64 + 2000 * Character.BYTES), cache.size());
+	}
+
+	@Test
+	void storedOrderInvalidatesCachedResponse() throws Exception {
+		Server server = new Server();
+		try {
+			TestClient client = new TestClient(server);
+			String first = client.buy(server, "DE0000000001");
+			assertEquals(List.of(first), client.orders(server, 0, 100));
+			assertEquals(List.of(first), client.orders(server, 0, 100));
+			assertEquals(1, server.ordersCache.hitCount());
+
+			String second = client.buy(server, "DE0000000002");
+			assertEquals(List.of(first, second), client.orders(server, 0, 100));
+			assertEquals(1, server.ordersCache.hitCount());
+		} finally {
+			server.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+package main;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Recovery of registry and orders from the journal and the snapshots.
+ *
+ * A crash is simulated by starting a new server on the journal of a running
+ * one without shutting it down.
+ */
+class ServerRecoveryTest {
+
+	@TempDir
+	Path directory;
+
+	private final List<Server> servers = new ArrayList<Server>();
+
+	@BeforeAll
+	static void generateMasterKey() {
+		Server.masterKey = Server.generateKey();
+	}
+
+	@BeforeEach
+	void configureJournal() {
+		Server.journalDirectory = directory.resolve("journal");
+		Server.journalPartitions = 2;
+		Server.journalSegmentBytes = 4 * 1024;
+		Server.statsIntervalMillis = 0;
+	}
+
+	@AfterEach
+	void shutdownServers() {
+		for (Server server : servers) {
+			server.shutdown();
+		}
+		Server.journalDirectory = null;
+		Server.journalPartitions = 8;
+		Server.journalSegmentBytes = 64 << 20;
+		Server.statsIntervalMillis = 10_000;
+		Server.orderBlockSize = 0;
+	}
+
+	@Test
+	void ordersSurviveCrash() throws Exception {
+		Server server = start();
+		TestClient client = new TestClient(server);
+		List<String> expected = buy(server, client, 0, 20);
+
+		Server recovered = start();
+		assertEquals(expected, client.orders(recovered, 0, 7));
+
+		// the recovered server continues the journal
+		expected.addAll(buy(recovered, client, 20, 5));
+		assertEquals(expected, client.orders(start(), 0, 100));
+	}
+
+	@Test
+	void messagesAfterShutdownAreRejected() throws Exception {
+		Server server = start();
+		TestClient client = new TestClient(server);
+		List<String> expected = buy(server, client, 0, 3);
+		server.shutdown();
+		servers.remove(server);
+
+		assertEquals("{\"Failure\"}", client.send(server, Message.createBuyStockMessage("DE0000000003", "1")));
+		assertThrows(IllegalStateException.class, () -> new TestClient(server));
+		assertEquals(expected, client.orders(start(), 0, 100));
+	}
+
+	@Test
+	void orderBlocksSurviveCrash() throws Exception {
+		Server.orderBlockSize = 8;
+		Server server = start();
+		TestClient client = new TestClient(server);
+		// one full block and one sealed by the end of the batch
+		List<String> expected = new ArrayList<String>();
+		List<String> batch = new ArrayList<String>();
+		for (int i = 0; i < 13; i++) {
+			String order = Message.createBuyStockMessage("DE000000" + String.format("%04d", i), "1");
+			expected.add(order);
+			batch.add(client.signed(order));
+		}
+		String accepted = Message.createServerResponseMessage(true);
+		for (String response : server.acceptMessages(batch)) {
+			assertEquals(accepted, response);
+		}
+		assertEquals(2, server.queues.get(client.id, 0, 100).size());
+
+		Server recovered = start();
+		assertEquals(expected, client.orders(recovered, 0, 100));
+		expected.addAll(buy(recovered, client, 13, 2));
+
+		Server.orderBlockSize = 0;
+		assertEquals(expected, client.orders(start(), 0, 3));
+	}
+
+	@Test
+	void partitionCountOfExistingJournalIsKept() throws Exception {
+		Server server = start();
+		TestClient client = new TestClient(server);
+		List<String> expected = buy(server, client, 0, 10);
+		server.shutdown();
+		servers.remove(server);
+
+		Server.journalPartitions = 4;
+		Server recovered = start();
+		assertEquals(expected, client.orders(recovered, 0, 100));
+		expected.addAll(buy(recovered, client, 10, 10));
+
+		Server.journalPartitions = 8;
+		assertEquals(expected, client.orders(start(), 0, 100));
+		assertEquals(2, PartitionedJournal.layout(Server.journalDirectory, 8));
+	}
+
+	@Test
+	void olderSnapshotIsLoadedIfLatestIsDamaged() throws Exception {
+		Server server = start();
+		TestClient client = new TestClient(server);
+		List<String> expected = buy(server, client, 0, 40);
+		server.writeSnapshot();
+		expected.addAll(buy(server, client, 40, 40));
+		server.writeSnapshot();
+		expected.addAll(buy(server, client, 80, 15));
+
+		List<Path> snapshots;
+		try (Stream<Path> files = Files.list(Server.journalDirectory)) {
+			snapshots = files.filter(file -> file.getFileName().toString().startsWith("snapshot-")).sorted()
+					.collect(Collectors.toList());
+		}
+		assertEquals(2, snapshots.size());
+		Path latest = snapshots.get(1);
+		try (FileChannel channel = FileChannel.open(latest, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 0x55 }), Files.size(latest) / 2);
+		}
+
+		Server recovered = start();
+		assertEquals(expected, client.orders(recovered, 0, 100));
+	}
+
+	private Server start() {
+		Server server = new Server();
+		servers.add(server);
+		return server;
+	}
+
+	private static List<String> buy(Server server, TestClient client, int from, int count) throws Exception {
+		List<String> orders = new ArrayList<String>();
+		for (int i = from; i < from + count; i++) {
+			orders.add(client.buy(server, "DE000000" + String.format("%04d", i)));
+		}
+		return orders;
+	}
+
+}
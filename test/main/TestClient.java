@@ -0,0 +1,131 @@
+package main;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.PublicKeySign;
+import com.google.crypto.tink.signature.SignatureKeyTemplates;
+
+import main.Message.MessageType;
+
+/**
+ * Client for the tests. It keeps its key across servers, so the same client
+ * can talk to a server that was recovered from the journal of another one.
+ */
+class TestClient {
+
+	final int id;
+	private final PublicKeySign signer;
+
+	/**
+	 * Generates a key and registers it at a server
+	 *
+	 * @param server
+	 * @throws GeneralSecurityException
+	 */
+	TestClient(Server server) throws GeneralSecurityException {
+		KeysetHandle key = KeysetHandle.generateNew(SignatureKeyTemplates.ED25519);
+		this.signer = key.getPrimitive(PublicKeySign.class);
+		this.id = server.registerClient(key.getPublicKeysetHandle());
+		if (id == -1) {
+			throw new IllegalStateException("server does not accept the client registration!");
+		}
+	}
+
+	/**
+	 * Sends a signed message
+	 *
+	 * @param server
+	 * @param message
+	 * @return String : response of the server
+	 * @throws GeneralSecurityException
+	 * @throws IOException
+	 */
+	String send(Server server, String message) throws GeneralSecurityException, IOException {
+		return server.acceptMessage(signed(message));
+	}
+
+	/**
+	 * Signs a message, e.g. for a batch
+	 *
+	 * @param message
+	 * @return String : signed message in the wire format
+	 * @throws GeneralSecurityException
+	 * @throws IOException
+	 */
+	String signed(String message) throws GeneralSecurityException, IOException {
+		byte[] signature = signer.sign(message.getBytes(StandardCharsets.UTF_8));
+		return SignedMessage.createSignedMessage(id, message, signature);
+	}
+
+	/**
+	 * Sends an order to buy stock
+	 *
+	 * @param server
+	 * @param stockISIN
+	 * @return String : the order as it is returned with the orders of the client
+	 * @throws GeneralSecurityException
+	 * @throws IOException
+	 * @throws IllegalStateException if the server did not store the order
+	 */
+	String buy(Server server, String stockISIN) throws GeneralSecurityException, IOException {
+		String order = Message.createBuyStockMessage(stockISIN, "1");
+		Message response = Json.MESSAGE_READER.readValue(send(server, order));
+		if (!"true".equals(response.getMessageParameters().get("result"))) {
+			throw new IllegalStateException("order not stored: " + order);
+		}
+		return order;
+	}
+
+	/**
+	 * Requests all orders after a sequence number, page by page
+	 *
+	 * @param server
+	 * @param sinceSequence
+	 * @param pageSize
+	 * @return List : orders, oldest first
+	 * @throws GeneralSecurityException
+	 * @throws IOException
+	 */
+	List<String> orders(Server server, long sinceSequence, int pageSize) throws GeneralSecurityException, IOException {
+		List<String> orders = new ArrayList<String>();
+		long lastSequence = sinceSequence;
+		boolean more;
+		do {
+			more = false;
+			String page = send(server, Message.createGetNewOrdersMessage(lastSequence, pageSize));
+			for (Message message : messages(page)) {
+				if (message.getMessageType() == MessageType.ServerSendOrders) {
+					orders.add(message.getMessageParameters().get("order"));
+					lastSequence = Math.max(lastSequence,
+							Long.parseLong(message.getMessageParameters().get("sequence")));
+				} else if (message.getMessageType() == MessageType.ServerSendOrdersCursor) {
+					more = true;
+				}
+			}
+		} while (more);
+		return orders;
+	}
+
+	/**
+	 * Messages of a page of orders
+	 *
+	 * @param page
+	 * @return List : empty for "no orders in queue"
+	 * @throws IOException
+	 */
+	static List<Message> messages(String page) throws IOException {
+		List<Message> messages = new ArrayList<Message>();
+		for (String line : page.split("\n")) {
+			if (line.startsWith("{")) {
+				messages.add(Json.MESSAGE_READER.readValue(line));
+			}
+		}
+		return messages;
+	}
+
+}